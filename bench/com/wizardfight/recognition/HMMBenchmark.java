@@ -0,0 +1,119 @@
+package com.wizardfight.recognition;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the forward and Viterbi passes of one HiddenMarkovModel, the
+ * forward pass over the same model in a ModelPack, and the scoring of all
+ * classes by HMM.predict, on random left-right models of numStates states.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HMMBenchmark {
+
+    static final int NUM_SYMBOLS = 20;
+    static final int NUM_CLASSES = 7;
+
+    @Param({ "50", "200", "1000" })
+    int length;
+
+    @Param({ "4", "10", "30" })
+    int numStates;
+
+    HiddenMarkovModel model;
+    LogModel logModel;
+    ModelPack pack;
+    HMM hmm;
+    HMM beamHmm; // The same models with beam pruning
+    int[] observations;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        hmm = new HMM();
+        hmm.numClasses = NUM_CLASSES;
+        hmm.classLabels = new int[NUM_CLASSES];
+        hmm.nullRejectionThresholds = new double[NUM_CLASSES];
+        for (int k = 0; k < NUM_CLASSES; k++) {
+            hmm.models.add(randomModel(random, numStates));
+            hmm.classLabels[k] = k + 1;
+        }
+        beamHmm = new HMM();
+        beamHmm.numClasses = NUM_CLASSES;
+        beamHmm.classLabels = hmm.classLabels;
+        beamHmm.nullRejectionThresholds = hmm.nullRejectionThresholds;
+        beamHmm.models.addAll(hmm.models);
+        beamHmm.setBeamWidth(10);
+        model = hmm.models.get(0);
+        logModel = model.getLogModel();
+        pack = new ModelPack(hmm.models.toArray(new HiddenMarkovModel[NUM_CLASSES]));
+        observations = new int[length];
+        for (int t = 0; t < length; t++) {
+            observations[t] = random.nextInt(NUM_SYMBOLS);
+        }
+    }
+
+    static HiddenMarkovModel randomModel(Random random, int N) {
+        HiddenMarkovModel m = new HiddenMarkovModel();
+        m.numStates = N;
+        m.numSymbols = NUM_SYMBOLS;
+        m.pi = new double[N];
+        m.pi[0] = 1;
+        m.a = new double[N][N];
+        m.b = new double[N][NUM_SYMBOLS];
+        for (int i = 0; i < N; i++) {
+            double stay = 0.5 + random.nextDouble() * 0.4;
+            m.a[i][i] = i == N - 1 ? 1 : stay;
+            if (i < N - 1) {
+                m.a[i][i + 1] = 1 - stay;
+            }
+            double sum = 0;
+            for (int s = 0; s < NUM_SYMBOLS; s++) {
+                m.b[i][s] = random.nextDouble() + 1e-3;
+                sum += m.b[i][s];
+            }
+            for (int s = 0; s < NUM_SYMBOLS; s++) {
+                m.b[i][s] /= sum;
+            }
+        }
+        return m;
+    }
+
+    @Benchmark
+    public double modelPredict() {
+        return model.predict(observations);
+    }
+
+    @Benchmark
+    public double packForward() {
+        return pack.score(0, ScoringMode.FORWARD, observations);
+    }
+
+    @Benchmark
+    public double modelViterbi() {
+        return logModel.viterbi(observations);
+    }
+
+    @Benchmark
+    public int hmmPredict() {
+        hmm.predict(observations);
+        return hmm.getPredictedClassLabel();
+    }
+
+    @Benchmark
+    public int hmmPredictBeam() {
+        beamHmm.predict(observations);
+        return beamHmm.getPredictedClassLabel();
+    }
+}
@@ -0,0 +1,46 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures loading the model from GRT text files and from the serialized
+ * .ser files. Run from the project directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LoaderBenchmark {
+
+    @Benchmark
+    public HMM loadHMMText() throws IOException {
+        Loader loader = new Loader();
+        loader.loadHMMFromFile("wf_hmm_model_new.txt");
+        return loader.hmm;
+    }
+
+    @Benchmark
+    public KMeansQuantizer loadQuantizerText() throws IOException {
+        Loader loader = new Loader();
+        loader.loadQuantizerFromFile("wf_hmm_quantizer_new.txt");
+        return loader.quantizer;
+    }
+
+    @Benchmark
+    public Object readHMMSerialized() {
+        return Recognizer.readObject(new File("HMMModel.ser"));
+    }
+
+    @Benchmark
+    public Object readQuantizerSerialized() {
+        return Recognizer.readObject(new File("HMMQuantizer.ser"));
+    }
+}
@@ -0,0 +1,53 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures KMeansQuantizer.quantize on one sample and on a whole recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class QuantizerBenchmark {
+
+    @Param({ "100", "1000" })
+    int numSamples;
+
+    KMeansQuantizer quantizer;
+    double[] samples;
+    double[] sample = new double[3];
+    int next = 0;
+
+    @Setup
+    public void setup() {
+        quantizer = (KMeansQuantizer) Recognizer.readObject(new File("HMMQuantizer.ser"));
+        Random random = new Random(42);
+        samples = new double[numSamples * 3];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = random.nextGaussian() * 5;
+        }
+    }
+
+    @Benchmark
+    public int quantizeSample() {
+        System.arraycopy(samples, next, sample, 0, 3);
+        next = (next + 3) % samples.length;
+        return quantizer.quantize(sample);
+    }
+
+    @Benchmark
+    public int[] quantizeRecording() {
+        return quantizer.quantize(samples, 0, numSamples);
+    }
+}
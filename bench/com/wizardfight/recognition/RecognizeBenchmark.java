@@ -0,0 +1,66 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.wizardfight.components.Vector3d;
+
+/**
+ * Measures end to end recognition of every recording in input/, reported
+ * per recording. Run from the project directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RecognizeBenchmark {
+
+    // Number of recordings in input/, see setup
+    static final int NUM_RECORDINGS = 66;
+
+    RecognitionEngine engine;
+    List<ArrayList<Vector3d>> recordings = new ArrayList<ArrayList<Vector3d>>();
+
+    @Setup
+    public void setup() {
+        Recognizer.init();
+        engine = Recognizer.getEngine();
+        File[] files = new File("input").listFiles();
+        Arrays.sort(files);
+        for (File f : files) {
+            recordings.add(Recognizer.getRecordsFromFile(f));
+        }
+        if (recordings.size() != NUM_RECORDINGS) {
+            throw new IllegalStateException("Expected " + NUM_RECORDINGS
+                    + " recordings in input/, found " + recordings.size());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RECORDINGS)
+    public void recognizeCorpus(Blackhole bh) {
+        for (ArrayList<Vector3d> records : recordings) {
+            bh.consume(engine.recognize(records).getPredictedClassLabel());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_RECORDINGS)
+    public void recognizeCorpusStatic(Blackhole bh) {
+        for (ArrayList<Vector3d> records : recordings) {
+            bh.consume(Recognizer.recognize(records));
+        }
+    }
+}
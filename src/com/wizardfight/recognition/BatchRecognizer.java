@@ -0,0 +1,242 @@
+package com.wizardfight.recognition;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.wizardfight.Shape;
+
+/**
+ * This class re-scores many recordings against one model. Files are parsed
+ * and recognized by a pool of workers; a single writer appends one line per
+ * file to the results. The number of files in flight is bounded, so the
+ * memory use does not depend on the size of the archive.
+ *
+ * Each result line holds, separated by tabs: the file path, the predicted
+ * class label, the shape, the best log likelihood and the normalised
+ * likelihood of the best class. Files that cannot be read get the label
+ * ERROR and the reason instead.
+ */
+public class BatchRecognizer {
+
+    private static final String END = new String("END");
+
+    // Parse buffers of each worker thread, reused from file to file
+    private static final ThreadLocal<SampleBuffer> buffers = new ThreadLocal<SampleBuffer>() {
+        @Override
+        protected SampleBuffer initialValue() {
+            return new SampleBuffer();
+        }
+    };
+
+    private final RecognitionEngine engine;
+    private final int numThreads;
+    private final int maxInFlight;
+    private final AtomicInteger numErrors = new AtomicInteger();
+    private int numFiles;
+
+    /**
+     * @param int numThreads: the number of parsing and recognition workers
+     * @param int maxInFlight: the largest number of files being parsed,
+     * recognized or waiting to be written at any time
+     */
+    public BatchRecognizer(RecognitionEngine engine, int numThreads,
+            int maxInFlight) {
+        this.engine = engine;
+        this.numThreads = numThreads;
+        this.maxInFlight = maxInFlight;
+    }
+
+    public BatchRecognizer(RecognitionEngine engine) {
+        this(engine, Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * 16);
+    }
+
+    /**
+     * Recognizes every file and writes one result line per file. Lines are
+     * written in completion order.
+     *
+     * @return the number of files processed
+     */
+    public int run(Iterable<Path> files, final Writer out)
+            throws IOException, InterruptedException {
+        final BlockingQueue<String> results = new ArrayBlockingQueue<String>(maxInFlight + 1);
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        final IOException[] writeError = new IOException[1];
+        numFiles = 0;
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String line;
+                    while ((line = results.take()) != END) {
+                        if (writeError[0] == null) {
+                            try {
+                                out.write(line);
+                                out.write('\n');
+                            } catch (IOException ex) {
+                                writeError[0] = ex;
+                            }
+                        }
+                        inFlight.release();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "batch-writer");
+        writer.start();
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (final Path file : files) {
+                inFlight.acquire();
+                numFiles++;
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String line = file + "\tERROR";
+                        try {
+                            line = recognize(file);
+                        } catch (Exception ex) {
+                            numErrors.incrementAndGet();
+                            line = file + "\tERROR\t" + ex;
+                        } catch (Error err) {
+                            // Still write a line, or the permit is never
+                            // released and run() blocks for good
+                            numErrors.incrementAndGet();
+                            line = file + "\tERROR\t" + err;
+                            throw err;
+                        } finally {
+                            try {
+                                results.put(line);
+                            } catch (InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            results.put(END);
+            writer.join();
+        }
+        if (writeError[0] != null) {
+            throw writeError[0];
+        }
+        out.flush();
+        return numFiles;
+    }
+
+    /**
+     * @return the number of files that could not be recognized since this
+     * object was created
+     */
+    public int getNumErrors() {
+        return numErrors.get();
+    }
+
+    private String recognize(Path file) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            throw new IOException("Not a regular file");
+        }
+        SampleBuffer samples = RecordingReader.readAll(file.toFile(), buffers.get());
+        if (samples.isEmpty()) {
+            return file + "\t0\t" + Shape.NONE + "\t0\t0";
+        }
+        RecognitionResult result = engine.recognize(samples);
+        return file + "\t" + result.getPredictedClassLabel() + "\t"
+                + result.getShape() + "\t" + result.getBestDistance() + "\t"
+                + result.getMaxLikelihood();
+    }
+
+    /**
+     * Usage: BatchRecognizer [-t threads] [-q quantizer.txt -m model.txt]
+     * -o results.txt (dir | file)...
+     *
+     * Without -q and -m the serialized model loaded by Recognizer.init is
+     * used. Directories are not searched recursively.
+     */
+    public static void main(String[] args) throws Exception {
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        String quantizerPath = null;
+        String modelPath = null;
+        String outputPath = null;
+        List<Path> inputs = new ArrayList<Path>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t")) {
+                numThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-q")) {
+                quantizerPath = args[++i];
+            } else if (args[i].equals("-m")) {
+                modelPath = args[++i];
+            } else if (args[i].equals("-o")) {
+                outputPath = args[++i];
+            } else {
+                inputs.add(Paths.get(args[i]));
+            }
+        }
+        if (outputPath == null || inputs.isEmpty()) {
+            System.err.println("Usage: BatchRecognizer [-t threads] "
+                    + "[-q quantizer.txt -m model.txt] -o results.txt (dir | file)...");
+            System.exit(2);
+        }
+
+        RecognitionEngine engine;
+        if (quantizerPath != null && modelPath != null) {
+            engine = RecognitionEngine.compile(
+                    Recognizer.getQuantizerFromFile(quantizerPath),
+                    Recognizer.getHMMFromFile(modelPath));
+        } else {
+            Recognizer.init();
+            engine = Recognizer.getEngine();
+        }
+
+        BatchRecognizer batch = new BatchRecognizer(engine, numThreads,
+                numThreads * 16);
+        long startStamp = System.nanoTime();
+        int numFiles = 0;
+        Writer out = Files.newBufferedWriter(Paths.get(outputPath),
+                StandardCharsets.UTF_8);
+        try {
+            List<Path> files = new ArrayList<Path>();
+            for (Path input : inputs) {
+                if (Files.isDirectory(input)) {
+                    DirectoryStream<Path> dir = Files.newDirectoryStream(input);
+                    try {
+                        numFiles += batch.run(dir, out);
+                    } finally {
+                        dir.close();
+                    }
+                } else {
+                    files.add(input);
+                }
+            }
+            if (!files.isEmpty()) {
+                numFiles += batch.run(files, out);
+            }
+        } finally {
+            out.close();
+        }
+        long elapsed = System.nanoTime() - startStamp;
+        System.out.println("Files: " + numFiles + ", errors: "
+                + batch.getNumErrors() + ", time: " + (elapsed / 1000000)
+                + " ms, threads: " + numThreads);
+    }
+}
@@ -0,0 +1,400 @@
+package com.wizardfight.recognition;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * This class trains a discrete HiddenMarkovModel with the Baum-Welch
+ * algorithm over many observation sequences. The E-step (scaled forward and
+ * backward passes) runs over chunks of sequences in parallel on a fork-join
+ * pool; the expected counts of the chunks are summed before the M-step.
+ *
+ * Training stops after maxNumEpochs epochs, or once at least minNumEpochs
+ * epochs have run and the average log likelihood per sequence improves by
+ * less than minChange. The whole procedure is repeated from
+ * numRandomTrainingIterations random starting points and the best model is
+ * kept.
+ */
+public class BaumWelchTrainer {
+
+    private static volatile ForkJoinPool defaultPool;
+
+    private final ForkJoinPool pool;
+    private int minNumEpochs = 0;
+    private int maxNumEpochs = 100;
+    private double minChange = 1.0e-5;
+    private int numRandomTrainingIterations = 5;
+    private double minEmission = 1.0e-4;
+    private int grainSize = 8; // Sequences per E-step task
+    private long seed = 0;
+
+    private int numEpochs; // Epochs run by the last train call
+
+    public BaumWelchTrainer(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Creates a trainer running on a shared pool with one worker per core.
+     */
+    public BaumWelchTrainer() {
+        this(getDefaultPool());
+    }
+
+    /**
+     * @return the pool shared by the training algorithms, with one worker
+     * per core
+     */
+    static ForkJoinPool getDefaultPool() {
+        ForkJoinPool p = defaultPool;
+        if (p == null) {
+            synchronized (BaumWelchTrainer.class) {
+                p = defaultPool;
+                if (p == null) {
+                    p = new ForkJoinPool();
+                    defaultPool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    public void setMinNumEpochs(int minNumEpochs) {
+        this.minNumEpochs = minNumEpochs;
+    }
+
+    public void setMaxNumEpochs(int maxNumEpochs) {
+        this.maxNumEpochs = maxNumEpochs;
+    }
+
+    public void setMinChange(double minChange) {
+        this.minChange = minChange;
+    }
+
+    public void setNumRandomTrainingIterations(int numRandomTrainingIterations) {
+        this.numRandomTrainingIterations = Math.max(1, numRandomTrainingIterations);
+    }
+
+    /**
+     * Sets the smallest emission probability of a trained model, so that
+     * symbols missing from the training data can still be scored.
+     */
+    public void setMinEmission(double minEmission) {
+        this.minEmission = minEmission;
+    }
+
+    public void setGrainSize(int grainSize) {
+        this.grainSize = Math.max(1, grainSize);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the number of epochs the best restart of the last train call
+     * ran
+     */
+    public int getNumEpochs() {
+        return numEpochs;
+    }
+
+    /**
+     * Trains a model from the observation sequences.
+     *
+     * @param List<int[]> sequences: the training sequences, none of them empty
+     * @param int numStates: the number of hidden states
+     * @param int numSymbols: the number of observation symbols
+     * @param int modelType: 0 for an ergodic model, 1 for a left-right model
+     * @param int delta: the largest state jump of a left-right model
+     * @return the trained model, or null if no sequence could be used
+     */
+    public HiddenMarkovModel train(List<int[]> sequences, int numStates,
+            int numSymbols, int modelType, int delta) {
+        if (sequences.isEmpty() || numStates <= 0 || numSymbols <= 0) {
+            return null;
+        }
+        int[][] data = sequences.toArray(new int[sequences.size()][]);
+        Random random = new Random(seed);
+
+        HiddenMarkovModel best = null;
+        double bestLoglikelihood = Double.NEGATIVE_INFINITY;
+        int bestEpochs = 0;
+        for (int r = 0; r < numRandomTrainingIterations; r++) {
+            HiddenMarkovModel model = randomModel(numStates, numSymbols,
+                    modelType, delta, random);
+            double loglikelihood = Double.NEGATIVE_INFINITY;
+            int epoch = 0;
+            while (epoch < maxNumEpochs) {
+                Counts counts = pool.invoke(new EStep(model, data, 0,
+                        data.length));
+                if (counts.numSequences == 0) {
+                    break;
+                }
+                double average = counts.loglikelihood / counts.numSequences;
+                mStep(model, counts);
+                epoch++;
+                double change = average - loglikelihood;
+                loglikelihood = average;
+                if (epoch >= minNumEpochs && Math.abs(change) < minChange) {
+                    break;
+                }
+            }
+            if (best == null || loglikelihood > bestLoglikelihood) {
+                best = model;
+                bestLoglikelihood = loglikelihood;
+                bestEpochs = epoch;
+            }
+        }
+        numEpochs = bestEpochs;
+        return bestLoglikelihood == Double.NEGATIVE_INFINITY ? null : best;
+    }
+
+    private static HiddenMarkovModel randomModel(int N, int M, int modelType,
+            int delta, Random random) {
+        HiddenMarkovModel model = new HiddenMarkovModel();
+        model.numStates = N;
+        model.numSymbols = M;
+        model.modelType = modelType;
+        model.delta = delta;
+        model.pi = new double[N];
+        model.a = new double[N][N];
+        model.b = new double[N][M];
+
+        for (int i = 0; i < N; i++) {
+            if (modelType == 1) {
+                // Left-right: only stay or move up to delta states forward
+                for (int j = i; j < N && j <= i + delta; j++) {
+                    model.a[i][j] = random.nextDouble() + 1e-3;
+                }
+            } else {
+                for (int j = 0; j < N; j++) {
+                    model.a[i][j] = random.nextDouble() + 1e-3;
+                }
+            }
+            normalise(model.a[i]);
+            for (int k = 0; k < M; k++) {
+                model.b[i][k] = random.nextDouble() + 1e-3;
+            }
+            normalise(model.b[i]);
+        }
+        if (modelType == 1) {
+            model.pi[0] = 1;
+        } else {
+            for (int i = 0; i < N; i++) {
+                model.pi[i] = 1.0 / N;
+            }
+        }
+        return model;
+    }
+
+    private void mStep(HiddenMarkovModel model, Counts counts) {
+        final int N = model.numStates;
+        final int M = model.b[0].length;
+        for (int i = 0; i < N; i++) {
+            if (counts.aDen[i] > 0) {
+                for (int j = 0; j < N; j++) {
+                    model.a[i][j] = counts.aNum[i][j] / counts.aDen[i];
+                }
+            }
+            if (counts.bDen[i] > 0) {
+                for (int k = 0; k < M; k++) {
+                    model.b[i][k] = Math.max(counts.bNum[i][k] / counts.bDen[i],
+                            minEmission);
+                }
+                normalise(model.b[i]);
+            }
+            model.pi[i] = counts.pi[i] / counts.numSequences;
+        }
+    }
+
+    private static void normalise(double[] p) {
+        double sum = 0;
+        for (double v : p) {
+            sum += v;
+        }
+        for (int i = 0; i < p.length; i++) {
+            p[i] /= sum;
+        }
+    }
+
+    /**
+     * Expected counts summed over a set of sequences.
+     */
+    static final class Counts {
+
+        final double[] pi;
+        final double[][] aNum;
+        final double[] aDen;
+        final double[][] bNum;
+        final double[] bDen;
+        double loglikelihood = 0;
+        int numSequences = 0;
+
+        Counts(int N, int M) {
+            pi = new double[N];
+            aNum = new double[N][N];
+            aDen = new double[N];
+            bNum = new double[N][M];
+            bDen = new double[N];
+        }
+
+        void add(Counts other) {
+            for (int i = 0; i < pi.length; i++) {
+                pi[i] += other.pi[i];
+                aDen[i] += other.aDen[i];
+                bDen[i] += other.bDen[i];
+                for (int j = 0; j < aNum[i].length; j++) {
+                    aNum[i][j] += other.aNum[i][j];
+                }
+                for (int k = 0; k < bNum[i].length; k++) {
+                    bNum[i][k] += other.bNum[i][k];
+                }
+            }
+            loglikelihood += other.loglikelihood;
+            numSequences += other.numSequences;
+        }
+    }
+
+    private final class EStep extends RecursiveTask<Counts> {
+
+        private static final long serialVersionUID = 1L;
+        private final HiddenMarkovModel model;
+        private final int[][] data;
+        private final int from;
+        private final int to;
+
+        EStep(HiddenMarkovModel model, int[][] data, int from, int to) {
+            this.model = model;
+            this.data = data;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Counts compute() {
+            if (to - from > grainSize) {
+                int mid = (from + to) >>> 1;
+                EStep right = new EStep(model, data, mid, to);
+                right.fork();
+                Counts counts = new EStep(model, data, from, mid).compute();
+                counts.add(right.join());
+                return counts;
+            }
+
+            Counts counts = new Counts(model.numStates, model.b[0].length);
+            HMMTrainingObject obj = new HMMTrainingObject();
+            for (int s = from; s < to; s++) {
+                accumulate(model, data[s], obj, counts);
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Runs the scaled forward-backward passes over one sequence and adds its
+     * expected counts. Sequences the model cannot produce (zero likelihood or
+     * unknown symbols) are skipped.
+     */
+    private static void accumulate(HiddenMarkovModel model, int[] obs,
+            HMMTrainingObject obj, Counts counts) {
+        final int N = model.numStates;
+        final int M = model.b[0].length;
+        final int T = obs.length;
+        if (T == 0) {
+            return;
+        }
+        for (int t = 0; t < T; t++) {
+            if (obs[t] < 0 || obs[t] >= M) {
+                return;
+            }
+        }
+        obj.resize(T, N);
+        final double[][] alpha = obj.alpha.dataPtr;
+        final double[][] beta = obj.beta.dataPtr;
+        final double[] c = obj.c;
+        final double[] pi = model.pi;
+        final double[][] a = model.a;
+        final double[][] b = model.b;
+
+        // Forward pass, scaling each row to sum to 1
+        double sum = 0;
+        for (int i = 0; i < N; i++) {
+            alpha[0][i] = pi[i] * b[i][obs[0]];
+            sum += alpha[0][i];
+        }
+        if (!(sum > 0)) {
+            return;
+        }
+        c[0] = 1.0 / sum;
+        for (int i = 0; i < N; i++) {
+            alpha[0][i] *= c[0];
+        }
+        for (int t = 1; t < T; t++) {
+            final double[] prev = alpha[t - 1];
+            final double[] next = alpha[t];
+            sum = 0;
+            for (int j = 0; j < N; j++) {
+                double s = 0;
+                for (int i = 0; i < N; i++) {
+                    s += prev[i] * a[i][j];
+                }
+                next[j] = s * b[j][obs[t]];
+                sum += next[j];
+            }
+            if (!(sum > 0)) {
+                return;
+            }
+            c[t] = 1.0 / sum;
+            for (int j = 0; j < N; j++) {
+                next[j] *= c[t];
+            }
+        }
+
+        // Backward pass with the same scaling coefficients
+        for (int i = 0; i < N; i++) {
+            beta[T - 1][i] = c[T - 1];
+        }
+        for (int t = T - 2; t >= 0; t--) {
+            final double[] after = beta[t + 1];
+            final int o = obs[t + 1];
+            for (int i = 0; i < N; i++) {
+                double s = 0;
+                for (int j = 0; j < N; j++) {
+                    s += a[i][j] * b[j][o] * after[j];
+                }
+                beta[t][i] = s * c[t];
+            }
+        }
+
+        // gamma_t(i) = alpha_t(i) * beta_t(i) / c_t
+        // xi_t(i,j) = alpha_t(i) * a_ij * b_j(o_t+1) * beta_t+1(j)
+        double loglikelihood = 0;
+        for (int t = 0; t < T; t++) {
+            loglikelihood -= Math.log(c[t]);
+            final double[] at = alpha[t];
+            final double[] bt = beta[t];
+            for (int i = 0; i < N; i++) {
+                double gamma = at[i] * bt[i] / c[t];
+                counts.bNum[i][obs[t]] += gamma;
+                counts.bDen[i] += gamma;
+                if (t == 0) {
+                    counts.pi[i] += gamma;
+                }
+                if (t < T - 1) {
+                    counts.aDen[i] += gamma;
+                    final double[] after = beta[t + 1];
+                    final int o = obs[t + 1];
+                    final double[] aNum = counts.aNum[i];
+                    for (int j = 0; j < N; j++) {
+                        aNum[j] += at[i] * a[i][j] * b[j][o] * after[j];
+                    }
+                }
+            }
+        }
+        counts.loglikelihood += loglikelihood;
+        counts.numSequences++;
+    }
+}
@@ -0,0 +1,161 @@
+package com.wizardfight.recognition;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class scores one observation sequence against all class models in
+ * lockstep: every model advances one timestep before any model takes the
+ * next. After each timestep, classes whose partial log likelihood is more
+ * than beamWidth below the best class are dropped. A partial log likelihood
+ * can only fall as the sequence goes on, so a dropped class could only win
+ * by catching up more than beamWidth on the leader.
+ *
+ * Dropped classes get a distance of Double.NEGATIVE_INFINITY. The others get
+ * exactly the score of ModelPack.score. Normalised class likelihoods leave
+ * out the dropped classes, which each held less than exp(-beamWidth) of the
+ * leader's likelihood.
+ *
+ * The default beam width is read from the system property
+ * wizardfight.beamWidth; without it nothing is pruned.
+ */
+final class BeamScorer {
+
+    static final double DEFAULT_BEAM_WIDTH = parseBeamWidth(
+            System.getProperty("wizardfight.beamWidth"));
+
+    // Rolling rows of every class model, per thread, grown on demand
+    private static final ThreadLocal<double[][][]> scratch = new ThreadLocal<double[][][]>() {
+        @Override
+        protected double[][][] initialValue() {
+            return new double[2][0][];
+        }
+    };
+
+    private BeamScorer() {
+    }
+
+    private static double parseBeamWidth(String value) {
+        if (value != null) {
+            try {
+                double width = Double.parseDouble(value.trim());
+                if (width > 0) {
+                    return width;
+                }
+            } catch (NumberFormatException ex) {
+                // Reported below
+            }
+            System.err.println("ERROR: Invalid beam width " + value);
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Stores the score of obs under class k of the pack in classDistances[k],
+     * or Double.NEGATIVE_INFINITY if class k was pruned. In RUN_LENGTH mode
+     * the classes advance one run of equal symbols at a time and are pruned
+     * at the end of each run.
+     *
+     * @param ScoringMode mode: FORWARD or RUN_LENGTH for the log likelihood,
+     * VITERBI for the log probability of the best state path
+     * @param double beamWidth: how far in log likelihood a class may fall
+     * behind the best class before it is dropped
+     * @param int[] obs: the observation sequence, must not be empty
+     * @param AtomicLongArray pruned: if not null, pruned[k] is incremented
+     * when class k is dropped
+     * @return the number of classes dropped
+     */
+    static int score(ModelPack pack, ScoringMode mode, double beamWidth,
+            int[] obs, double[] classDistances, AtomicLongArray pruned) {
+        final int numClasses = pack.numClasses;
+        final boolean viterbi = mode == ScoringMode.VITERBI;
+        final SymbolOperators ops = mode == ScoringMode.RUN_LENGTH
+                ? pack.getOperators() : null;
+        double[][][] rows = scratch.get();
+        if (rows[0].length < numClasses) {
+            rows[0] = new double[numClasses][0];
+            rows[1] = new double[numClasses][0];
+        }
+        final double[][] prev = rows[0];
+        final double[][] next = rows[1];
+        for (int k = 0; k < numClasses; k++) {
+            if (prev[k].length < pack.numStates[k]) {
+                prev[k] = new double[pack.numStates[k]];
+                next[k] = new double[pack.numStates[k]];
+            }
+        }
+
+        int numActive = numClasses;
+        int numPruned = 0;
+        int t = 0;
+        while (t < obs.length) {
+            final int o = obs[t];
+            int end = t + 1;
+            if (ops != null) {
+                while (end < obs.length && obs[end] == o) {
+                    end++;
+                }
+            }
+            for (int k = 0; k < numClasses; k++) {
+                if (t > 0 && classDistances[k] == Double.NEGATIVE_INFINITY) {
+                    continue;
+                }
+                if (ops != null) {
+                    double d = t == 0
+                            ? ops.init(k, o, end - t, prev[k], next[k])
+                            : ops.advance(k, o, end - t, prev[k], next[k]);
+                    classDistances[k] = t == 0 ? d : classDistances[k] + d;
+                    continue;
+                }
+                if (t == 0) {
+                    classDistances[k] = viterbi
+                            ? pack.viterbiInit(k, o, prev[k])
+                            : -Math.log(pack.forwardInit(k, o, prev[k]));
+                    continue;
+                }
+                if (viterbi) {
+                    classDistances[k] = pack.viterbiStep(k, prev[k], next[k], o);
+                } else {
+                    classDistances[k] -= Math.log(pack.forwardStep(k, prev[k],
+                            next[k], o));
+                }
+                double[] tmp = prev[k];
+                prev[k] = next[k];
+                next[k] = tmp;
+            }
+            t = end;
+            if (numActive > 1) {
+                int n = prune(classDistances, beamWidth, pruned);
+                numActive -= n;
+                numPruned += n;
+            }
+        }
+        return numPruned;
+    }
+
+    /**
+     * Drops the classes more than beamWidth behind the best class.
+     *
+     * @return the number of classes dropped
+     */
+    private static int prune(double[] classDistances, double beamWidth,
+            AtomicLongArray pruned) {
+        double leader = Double.NEGATIVE_INFINITY;
+        for (double d : classDistances) {
+            leader = Math.max(leader, d);
+        }
+        double floor = leader - beamWidth;
+        int numPruned = 0;
+        for (int k = 0; k < classDistances.length; k++) {
+            double d = classDistances[k];
+            if (d == Double.NEGATIVE_INFINITY || d >= floor) {
+                continue;
+            }
+            classDistances[k] = Double.NEGATIVE_INFINITY;
+            numPruned++;
+            if (pruned != null) {
+                pruned.incrementAndGet(k);
+            }
+        }
+        return numPruned;
+    }
+}
@@ -0,0 +1,111 @@
+package com.wizardfight.recognition;
+
+/**
+ * This class is an immutable, primitive copy of a KMeansQuantizer codebook.
+ * The cluster centres are stored in structure-of-arrays layout (one array per
+ * input dimension), so the distance pass walks every array sequentially and
+ * can be vectorized by the JIT. No method allocates once the calling thread
+ * has quantized its first sample.
+ */
+final class Codebook {
+
+    final int numClusters;
+    final int numDimensions;
+    private final double[][] columns; // columns[d][k]: dimension d of cluster k
+
+    // Squared distance to every cluster, one buffer per thread
+    private static final ThreadLocal<double[]> scratch = new ThreadLocal<double[]>() {
+        @Override
+        protected double[] initialValue() {
+            return new double[0];
+        }
+    };
+
+    /**
+     * @param double[][] clusters: the cluster centres, clusters[k][d]
+     */
+    Codebook(double[][] clusters, int numClusters, int numDimensions) {
+        this.numClusters = numClusters;
+        this.numDimensions = numDimensions;
+        columns = new double[numDimensions][numClusters];
+        for (int k = 0; k < numClusters; k++) {
+            for (int d = 0; d < numDimensions; d++) {
+                columns[d][k] = clusters[k][d];
+            }
+        }
+    }
+
+    double getCentre(int k, int d) {
+        return columns[d][k];
+    }
+
+    /**
+     * Finds the cluster closest to the input vector.
+     *
+     * @param double[] samples: holds the input vector at offset
+     * @return the index of the nearest cluster
+     */
+    int nearest(double[] samples, int offset) {
+        return nearest(samples, offset, distances());
+    }
+
+    /**
+     * Same as nearest(double[], int), leaving the squared distance to each
+     * cluster in dist.
+     */
+    int nearest(double[] samples, int offset, double[] dist) {
+        final int K = numClusters;
+
+        // Distance pass: one sequential sweep per dimension
+        double[] col = columns[0];
+        double v = samples[offset];
+        for (int k = 0; k < K; k++) {
+            double diff = v - col[k];
+            dist[k] = diff * diff;
+        }
+        for (int d = 1; d < numDimensions; d++) {
+            col = columns[d];
+            v = samples[offset + d];
+            for (int k = 0; k < K; k++) {
+                double diff = v - col[k];
+                dist[k] += diff * diff;
+            }
+        }
+
+        // Argmin pass, the first of equal distances wins
+        double minDist = Double.MAX_VALUE;
+        int quantizedValue = 0;
+        for (int k = 0; k < K; k++) {
+            if (dist[k] < minDist) {
+                minDist = dist[k];
+                quantizedValue = k;
+            }
+        }
+        return quantizedValue;
+    }
+
+    /**
+     * Quantizes numSamples interleaved vectors in one pass.
+     *
+     * @param double[] samples: numDimensions values per sample, starting at
+     * offset
+     * @param int[] out: receives the symbol of each sample, starting at
+     * outOffset
+     */
+    void quantize(double[] samples, int offset, int numSamples, int[] out,
+            int outOffset) {
+        double[] dist = distances();
+        for (int t = 0; t < numSamples; t++) {
+            out[outOffset + t] = nearest(samples, offset + t * numDimensions, dist);
+        }
+    }
+
+    private double[] distances() {
+        double[] dist = scratch.get();
+        if (dist.length < numClusters) {
+            dist = new double[numClusters];
+            scratch.set(dist);
+        }
+        return dist;
+    }
+}
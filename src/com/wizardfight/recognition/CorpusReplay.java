@@ -0,0 +1,282 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.wizardfight.Shape;
+import com.wizardfight.components.Vector3d;
+
+/**
+ * This class replays a directory of recordings through the recognizer with a
+ * number of simulated players and reports accuracy and latency from the same
+ * run.
+ *
+ * The expected shape of a recording is taken from its file name: circle3.txt
+ * is a circle, and so on for clock, pi, shield, triangle, v and z. Other
+ * files (noname*.txt, data*.txt) are replayed but only counted as unlabeled.
+ *
+ * In realtime mode each player waits for the duration of a gesture at the
+ * sensor rate before recognizing it, like a player drawing it; otherwise the
+ * players recognize recordings back to back. Latency is the time of the
+ * recognize call alone.
+ */
+public class CorpusReplay {
+
+    static final Shape[] LABELED = { Shape.CIRCLE, Shape.CLOCK, Shape.PI,
+        Shape.SHIELD, Shape.TRIANGLE, Shape.V, Shape.Z };
+    // Confusion matrix row for recordings without a label
+    private static final int UNLABELED = Shape.values().length;
+
+    private final RecognitionEngine engine;
+    private final List<ArrayList<Vector3d>> recordings = new ArrayList<ArrayList<Vector3d>>();
+    private final List<Shape> labels = new ArrayList<Shape>();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // confusion[expected * numShapes + predicted], by Shape ordinal
+    private final AtomicLongArray confusion = new AtomicLongArray(
+            (Shape.values().length + 1) * Shape.values().length);
+    private long elapsedNanos;
+
+    public CorpusReplay(RecognitionEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * @return the shape named by the file name prefix, or null if the file is
+     * not labeled
+     */
+    static Shape getLabel(String fileName) {
+        int end = 0;
+        while (end < fileName.length() && Character.isLetter(fileName.charAt(end))) {
+            end++;
+        }
+        String prefix = fileName.substring(0, end).toLowerCase();
+        for (Shape s : LABELED) {
+            if (s.toString().equals(prefix)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Loads every non-empty .txt recording of the directory.
+     *
+     * @return the number of recordings loaded
+     */
+    public int load(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            System.err.println("ERROR: Not a directory: " + dir);
+            return 0;
+        }
+        Arrays.sort(files);
+        for (File f : files) {
+            if (!f.isFile() || !f.getName().endsWith(".txt")) {
+                continue;
+            }
+            ArrayList<Vector3d> records = Recognizer.getRecordsFromFile(f);
+            if (records.isEmpty()) {
+                continue;
+            }
+            recordings.add(records);
+            labels.add(getLabel(f.getName()));
+        }
+        return recordings.size();
+    }
+
+    /**
+     * Replays the loaded recordings.
+     *
+     * @param int numPlayers: the number of concurrent simulated players
+     * @param int iterations: how many times each player replays the corpus
+     * @param double sampleRate: the sensor rate in Hz for realtime replay, or
+     * 0 to replay as fast as possible
+     */
+    public void run(final int numPlayers, final int iterations,
+            final double sampleRate) throws InterruptedException {
+        Thread[] players = new Thread[numPlayers];
+        long startStamp = System.nanoTime();
+        for (int p = 0; p < numPlayers; p++) {
+            final long seed = p;
+            players[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    play(new Random(seed), iterations, sampleRate);
+                }
+            }, "player-" + p);
+            players[p].start();
+        }
+        for (Thread t : players) {
+            t.join();
+        }
+        elapsedNanos = System.nanoTime() - startStamp;
+    }
+
+    private void play(Random random, int iterations, double sampleRate) {
+        final int numShapes = Shape.values().length;
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < recordings.size(); i++) {
+            order.add(i);
+        }
+        for (int it = 0; it < iterations; it++) {
+            // Each player draws the gestures in its own order
+            Collections.shuffle(order, random);
+            for (int i : order) {
+                ArrayList<Vector3d> records = recordings.get(i);
+                if (sampleRate > 0) {
+                    long duration = (long) (records.size() * 1000 / sampleRate);
+                    try {
+                        Thread.sleep(duration);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                long start = System.nanoTime();
+                Shape shape = engine.recognize(records).getShape();
+                latency.record(System.nanoTime() - start);
+
+                Shape expected = labels.get(i);
+                int row = expected == null ? UNLABELED : expected.ordinal();
+                confusion.incrementAndGet(row * numShapes + shape.ordinal());
+            }
+        }
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getCount(Shape expected, Shape predicted) {
+        int row = expected == null ? UNLABELED : expected.ordinal();
+        return confusion.get(row * Shape.values().length + predicted.ordinal());
+    }
+
+    /**
+     * @return the share of labeled recognitions that got the expected shape
+     */
+    public double getAccuracy() {
+        long correct = 0;
+        long total = 0;
+        for (Shape expected : LABELED) {
+            for (Shape predicted : Shape.values()) {
+                long c = getCount(expected, predicted);
+                total += c;
+                if (predicted == expected) {
+                    correct += c;
+                }
+            }
+        }
+        return total == 0 ? 0 : (double) correct / total;
+    }
+
+    /**
+     * @return recognitions per second over the last run
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : latency.getCount() * 1e9 / elapsedNanos;
+    }
+
+    public void printReport() {
+        Shape[] shapes = Shape.values();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s", "expected"));
+        for (Shape s : shapes) {
+            sb.append(String.format("%9s", s));
+        }
+        System.out.println(sb);
+        for (int row = 0; row <= LABELED.length; row++) {
+            Shape expected = row < LABELED.length ? LABELED[row] : null;
+            sb.setLength(0);
+            sb.append(String.format("%-10s", expected == null ? "unlabeled" : expected.toString()));
+            for (Shape s : shapes) {
+                sb.append(String.format("%9d", getCount(expected, s)));
+            }
+            System.out.println(sb);
+        }
+        System.out.println();
+        System.out.println(String.format("Accuracy: %.2f%%", getAccuracy() * 100));
+        System.out.println(String.format("Throughput: %.1f recognitions/s over %d ms",
+                getThroughput(), elapsedNanos / 1000000));
+        System.out.println("Latency: " + latency);
+    }
+
+    /**
+     * Usage: CorpusReplay [-p players] [-n iterations] [-rate hz]
+     * [-mode forward|viterbi|run_length] [-beam width] [-cache entries]
+     * [-minAccuracy percent] [dir]
+     *
+     * Replays input/ by default, as fast as possible unless -rate is given,
+     * scoring in ScoringMode.getDefault() unless -mode is given.
+     * Exits with status 1 if the accuracy is below -minAccuracy.
+     */
+    public static void main(String[] args) throws Exception {
+        int numPlayers = 1;
+        int iterations = 1;
+        double sampleRate = 0;
+        double minAccuracy = -1;
+        ScoringMode mode = null;
+        double beamWidth = 0;
+        int cacheEntries = 0;
+        File dir = new File("input");
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p")) {
+                numPlayers = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-n")) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-rate")) {
+                sampleRate = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-mode")) {
+                mode = ScoringMode.valueOf(args[++i].toUpperCase());
+            } else if (args[i].equals("-beam")) {
+                beamWidth = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("-cache")) {
+                cacheEntries = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-minAccuracy")) {
+                minAccuracy = Double.parseDouble(args[++i]);
+            } else {
+                dir = new File(args[i]);
+            }
+        }
+
+        Recognizer.init();
+        RecognitionEngine engine = Recognizer.getEngine();
+        if (engine == null) {
+            System.err.println("ERROR: No model loaded!");
+            System.exit(2);
+        }
+        if (mode != null) {
+            engine = engine.withScoringMode(mode);
+        }
+        if (beamWidth > 0) {
+            engine = engine.withBeamWidth(beamWidth);
+        }
+        if (cacheEntries > 0) {
+            engine = engine.withResultCache(new ResultCache(cacheEntries));
+        }
+        CorpusReplay replay = new CorpusReplay(engine);
+        if (replay.load(dir) == 0) {
+            System.err.println("ERROR: No recordings in " + dir);
+            System.exit(2);
+        }
+        replay.run(numPlayers, iterations, sampleRate);
+        replay.printReport();
+        if (engine.getBeamWidth() != Double.POSITIVE_INFINITY) {
+            System.out.println("Pruned: "
+                    + RecognitionMetrics.getDefault().getClassPruneCounts());
+        }
+        if (engine.getResultCache() != null) {
+            System.out.println(engine.getResultCache());
+        }
+        if (replay.getAccuracy() * 100 < minAccuracy) {
+            System.err.println("ERROR: Accuracy is below " + minAccuracy + "%");
+            System.exit(1);
+        }
+    }
+}
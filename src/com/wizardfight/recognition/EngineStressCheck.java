@@ -0,0 +1,116 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.wizardfight.components.Vector3d;
+
+/**
+ * Concurrency stress check for RecognitionEngine. Every recording is first
+ * recognized on one thread; then many threads recognize the same recordings
+ * in random order through one shared engine, both in batch and through
+ * sessions, and every result must match the single threaded one exactly.
+ *
+ * Usage: EngineStressCheck [inputDir] [threads] [iterations]
+ */
+public class EngineStressCheck {
+
+    public static void main(String[] args) throws Exception {
+        File inputDir = new File(args.length > 0 ? args[0] : "input");
+        int numThreads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors() * 2;
+        final int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        Recognizer.init();
+        final RecognitionEngine engine = Recognizer.getEngine();
+        if (engine == null) {
+            System.err.println("ERROR: No model loaded!");
+            System.exit(2);
+        }
+
+        File[] files = inputDir.listFiles();
+        if (files == null || files.length == 0) {
+            System.err.println("ERROR: No recordings in " + inputDir);
+            System.exit(2);
+        }
+        Arrays.sort(files);
+
+        // Single threaded reference results
+        final List<ArrayList<Vector3d>> recordings = new ArrayList<ArrayList<Vector3d>>();
+        final List<RecognitionResult> expected = new ArrayList<RecognitionResult>();
+        for (File file : files) {
+            ArrayList<Vector3d> records = Recognizer.getRecordsFromFile(file);
+            if (records.isEmpty()) {
+                continue;
+            }
+            recordings.add(records);
+            expected.add(engine.recognize(records));
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < numThreads; t++) {
+            final long seed = t;
+            futures.add(pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    Random random = new Random(seed);
+                    RecognitionSession session = engine.newSession();
+                    int mismatches = 0;
+                    start.await();
+                    for (int i = 0; i < iterations; i++) {
+                        int r = random.nextInt(recordings.size());
+                        ArrayList<Vector3d> records = recordings.get(r);
+
+                        RecognitionResult result;
+                        if (random.nextBoolean()) {
+                            result = engine.recognize(records);
+                        } else {
+                            session.reset();
+                            for (Vector3d v : records) {
+                                session.addSample(v);
+                            }
+                            result = session.getResult();
+                        }
+                        if (!matches(expected.get(r), result)) {
+                            mismatches++;
+                        }
+                    }
+                    return mismatches;
+                }
+            }));
+        }
+
+        long startStamp = System.nanoTime();
+        start.countDown();
+        int mismatches = 0;
+        for (Future<Integer> f : futures) {
+            mismatches += f.get();
+        }
+        long elapsed = System.nanoTime() - startStamp;
+        pool.shutdown();
+
+        int total = numThreads * iterations;
+        System.out.println("Threads: " + numThreads + ", recognitions: " + total
+                + ", time: " + (elapsed / 1000000) + " ms, mismatches: "
+                + mismatches);
+        if (mismatches != 0) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean matches(RecognitionResult a, RecognitionResult b) {
+        return a.getPredictedClassLabel() == b.getPredictedClassLabel()
+                && Arrays.equals(a.getClassDistances(), b.getClassDistances())
+                && Arrays.equals(a.getClassLikelihoods(), b.getClassLikelihoods());
+    }
+}
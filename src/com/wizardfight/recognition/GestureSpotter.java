@@ -0,0 +1,329 @@
+package com.wizardfight.recognition;
+
+import java.util.Arrays;
+
+import com.wizardfight.Shape;
+
+/**
+ * This class finds gestures in a continuous stream of samples, without the
+ * caller marking where a gesture starts and ends.
+ *
+ * Segments are scored by their log likelihood ratio against a background
+ * model, the symbol frequencies of the last few hundred samples. Holding
+ * still or repeating one motion makes the background predict the stream
+ * well, so such segments score low however well a class model fits them.
+ *
+ * Every class model runs a log-domain Viterbi recursion in which a path may
+ * start at any sample. Each sample adds its background ratio minus the
+ * threshold to a path, so a path scores above zero exactly when its ratio
+ * per sample is above the threshold; good segments grow while poor ones are
+ * dropped for a fresh start. All candidate segments of a class share this
+ * one recursion, so a sample costs O(numClasses * numStates^2) however long
+ * the gesture.
+ *
+ * A segment ending in a final state with enough samples and a score above
+ * the threshold is a candidate. The best candidate, the one with the largest
+ * total score above the threshold, is reported once no better one has
+ * appeared for holdSamples samples, and the search then starts over after
+ * it. Comparing totals rather than ratios per sample prefers a whole gesture
+ * to a short, sharp part of it.
+ *
+ * A spotter belongs to one stream and is not thread safe.
+ */
+public final class GestureSpotter {
+
+    /**
+     * A gesture found in the stream.
+     */
+    public static final class Detection {
+
+        private final int classLabel;
+        private final long start;
+        private final long end;
+        private final double score;
+
+        Detection(int classLabel, long start, long end, double score) {
+            this.classLabel = classLabel;
+            this.start = start;
+            this.end = end;
+            this.score = score;
+        }
+
+        public int getClassLabel() {
+            return classLabel;
+        }
+
+        public Shape getShape() {
+            return Recognizer.getShape(classLabel);
+        }
+
+        /**
+         * @return the index in the stream of the first sample of the gesture
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return the index in the stream of the last sample of the gesture
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        public int getLength() {
+            return (int) (end - start + 1);
+        }
+
+        /**
+         * @return the Viterbi log likelihood ratio of the gesture against the
+         * background, per sample
+         */
+        public double getScore() {
+            return score;
+        }
+
+        @Override
+        public String toString() {
+            return getShape() + " [" + start + ", " + end + "] score " + score;
+        }
+    }
+
+    private final RecognitionEngine engine;
+    private final ModelPack pack; // The recursion reads its log tables
+    // States a gesture may end in, per class: the last state of a
+    // left-right model, every state otherwise
+    private final int[][] endStates;
+    private final double[] thresholds; // Per sample log likelihood
+    private int minLength = 10;
+    private int maxLength = 500;
+    private int holdSamples = 10;
+
+    // Viterbi scores and path start times of each class, rolled per sample
+    private double[][] delta;
+    private double[][] next;
+    private long[][] start;
+    private long[][] nextStart;
+
+    // Decayed symbol counts of the recent stream, the background model
+    private final double[] background;
+    private double backgroundTotal = 0;
+    private double backgroundDecay;
+
+    private final double[] sample = new double[3];
+    private long time = 0; // Index of the next sample
+    private Detection pending;
+    private double pendingMargin; // Score of pending above the threshold
+
+    public GestureSpotter(RecognitionEngine engine) {
+        this.engine = engine;
+        int numClasses = engine.getNumClasses();
+        pack = engine.getPack();
+        endStates = new int[numClasses][];
+        thresholds = new double[numClasses];
+        delta = new double[numClasses][];
+        next = new double[numClasses][];
+        start = new long[numClasses][];
+        nextStart = new long[numClasses][];
+        for (int k = 0; k < numClasses; k++) {
+            int N = pack.numStates[k];
+            endStates[k] = findEndStates(k);
+            delta[k] = new double[N];
+            next[k] = new double[N];
+            start[k] = new long[N];
+            nextStart[k] = new long[N];
+            thresholds[k] = 0.5;
+        }
+        background = new double[engine.getNumSymbols()];
+        setBackgroundWindow(300);
+        reset();
+    }
+
+    // A model without backward jumps is left-right and ends in its last state
+    private int[] findEndStates(int k) {
+        final int N = pack.numStates[k];
+        final int aT = pack.offsets[k] + N;
+        for (int j = 0; j < N; j++) {
+            for (int i = j + 1; i < N; i++) {
+                if (pack.data[aT + j * N + i] > 0) {
+                    // A backward jump from i to j, not a left-right model
+                    int[] all = new int[N];
+                    for (int s = 0; s < N; s++) {
+                        all[s] = s;
+                    }
+                    return all;
+                }
+            }
+        }
+        return new int[] { N - 1 };
+    }
+
+    /**
+     * Sets the lowest log likelihood ratio per sample, against the
+     * background, that a gesture of any class may have.
+     */
+    public void setThreshold(double threshold) {
+        for (int k = 0; k < thresholds.length; k++) {
+            thresholds[k] = threshold;
+        }
+    }
+
+    /**
+     * Sets the threshold of the class model with index k.
+     */
+    public void setThreshold(int k, double threshold) {
+        thresholds[k] = threshold;
+    }
+
+    /**
+     * Sets the number of recent samples the background model is estimated
+     * from.
+     */
+    public void setBackgroundWindow(int samples) {
+        backgroundDecay = 1.0 - 1.0 / Math.max(1, samples);
+    }
+
+    public void setMinLength(int minLength) {
+        this.minLength = minLength;
+    }
+
+    /**
+     * Sets the largest number of samples a gesture may have. Longer paths
+     * are cut from the recursion, so a well scoring stream cannot hold on to
+     * a class model and keep a new gesture from being reported.
+     */
+    public void setMaxLength(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Sets how many samples must pass without a better candidate before a
+     * gesture is reported.
+     */
+    public void setHoldSamples(int holdSamples) {
+        this.holdSamples = holdSamples;
+    }
+
+    /**
+     * Forgets every partial gesture; the stream position is kept.
+     */
+    public void reset() {
+        for (int k = 0; k < delta.length; k++) {
+            Arrays.fill(delta[k], Double.NEGATIVE_INFINITY);
+        }
+        pending = null;
+    }
+
+    /**
+     * @return the number of samples seen so far
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Adds one accelerometer sample.
+     *
+     * @return the gesture that was completed, or null
+     */
+    public Detection addSample(double x, double y, double z) {
+        sample[0] = x;
+        sample[1] = y;
+        sample[2] = z;
+        return addSymbol(engine.quantize(sample));
+    }
+
+    /**
+     * Adds one quantized sample.
+     *
+     * @return the gesture that was completed, or null
+     */
+    public Detection addSymbol(int o) {
+        final long t = time++;
+        // Background probability of the symbol, with one pseudo count spread
+        // over the symbols
+        double logBackground = Math.log(
+                (background[o] + 1.0 / background.length)
+                / (backgroundTotal + 1.0));
+        for (int k = 0; k < delta.length; k++) {
+            step(k, o, t, logBackground);
+        }
+        for (int s = 0; s < background.length; s++) {
+            background[s] *= backgroundDecay;
+        }
+        background[o] += 1;
+        backgroundTotal = backgroundTotal * backgroundDecay + 1;
+        if (pending != null && t - pending.end >= holdSamples) {
+            Detection detection = pending;
+            reset();
+            return detection;
+        }
+        return null;
+    }
+
+    /**
+     * Reports the pending gesture without waiting for the hold period, for
+     * the end of a stream.
+     *
+     * @return the pending gesture, or null
+     */
+    public Detection flush() {
+        Detection detection = pending;
+        reset();
+        return detection;
+    }
+
+    private void step(int k, int o, long t, double logBackground) {
+        final double[] data = pack.data;
+        final int N = pack.numStates[k];
+        final int logPi = pack.logOffsets[k];
+        final int logAT = logPi + N;
+        final int logB = logAT + N * N + o * N;
+        final double threshold = thresholds[k];
+        final double bonus = -logBackground - threshold;
+        final double[] prev = delta[k];
+        final double[] cur = next[k];
+        final long[] prevStart = start[k];
+        final long[] curStart = nextStart[k];
+
+        for (int j = 0; j < N; j++) {
+            // A path may start here or continue from any state, unless it
+            // would grow longer than a gesture may be; a fresh start then
+            // takes over however well the long path scores
+            final int row = logAT + j * N;
+            double best = data[logPi + j];
+            long bestStart = t;
+            for (int i = 0; i < N; i++) {
+                if (t - prevStart[i] >= maxLength) {
+                    continue;
+                }
+                double v = prev[i] + data[row + i];
+                if (v > best) {
+                    best = v;
+                    bestStart = prevStart[i];
+                }
+            }
+            cur[j] = best + data[logB + j] + bonus;
+            curStart[j] = bestStart;
+        }
+        delta[k] = cur;
+        next[k] = prev;
+        start[k] = curStart;
+        nextStart[k] = prevStart;
+
+        for (int j : endStates[k]) {
+            if (!(cur[j] >= 0)) {
+                continue;
+            }
+            long length = t - curStart[j] + 1;
+            if (length < minLength) {
+                continue;
+            }
+            if (pending == null || cur[j] > pendingMargin) {
+                pending = new Detection(engine.getClassLabel(k), curStart[j],
+                        t, cur[j] / length + threshold);
+                pendingMargin = cur[j];
+            }
+        }
+    }
+}
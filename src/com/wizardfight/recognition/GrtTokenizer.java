@@ -0,0 +1,198 @@
+package com.wizardfight.recognition;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * This class splits a GRT text model into whitespace separated tokens
+ * without regular expressions or per token strings. A token ending with ':'
+ * is a key ("NumStates:", "A:"); every other token is a value. Numbers are
+ * parsed straight from the token characters.
+ */
+final class GrtTokenizer {
+
+    static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final Reader reader;
+    private final char[] buffer = new char[1 << 16];
+    private int bufferPos = 0;
+    private int bufferEnd = 0;
+
+    private char[] token = new char[64];
+    private int tokenLength = 0;
+    private boolean hasToken = false;
+
+    // Values read by readValues, reused between calls
+    private double[] values = new double[256];
+    private int numValues = 0;
+
+    GrtTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next token.
+     *
+     * @return false at the end of the input
+     */
+    boolean advance() throws IOException {
+        int c = read();
+        while (c >= 0 && c <= ' ') {
+            c = read();
+        }
+        tokenLength = 0;
+        while (c > ' ') {
+            if (tokenLength == token.length) {
+                char[] grown = new char[token.length * 2];
+                System.arraycopy(token, 0, grown, 0, tokenLength);
+                token = grown;
+            }
+            token[tokenLength++] = (char) c;
+            c = read();
+        }
+        hasToken = tokenLength > 0;
+        return hasToken;
+    }
+
+    boolean hasToken() {
+        return hasToken;
+    }
+
+    boolean isKey() {
+        return hasToken && token[tokenLength - 1] == ':';
+    }
+
+    /**
+     * @param String key: the key without the trailing ':'
+     * @return true if the current token is the given key
+     */
+    boolean isKey(String key) {
+        if (!isKey() || tokenLength - 1 != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < key.length(); i++) {
+            if (token[i] != key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String text() {
+        return new String(token, 0, tokenLength);
+    }
+
+    /**
+     * Reads all the values up to the next key or the end of the input. The
+     * next key, if any, becomes the current token.
+     *
+     * @return the number of values read, available through value(int)
+     */
+    int readValues() throws IOException {
+        numValues = 0;
+        while (advance() && !isKey()) {
+            if (numValues == values.length) {
+                double[] grown = new double[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, numValues);
+                values = grown;
+            }
+            values[numValues++] = doubleValue();
+        }
+        return numValues;
+    }
+
+    double value(int i) {
+        return values[i];
+    }
+
+    int intValue(int i) {
+        return (int) values[i];
+    }
+
+    /**
+     * Parses the current token as a double. Decimal numbers with at most 15
+     * significant digits and a small exponent are converted exactly without
+     * creating a string; anything else goes through Double.parseDouble.
+     */
+    double doubleValue() {
+        int i = 0;
+        boolean negative = false;
+        if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+            negative = token[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        for (; i < tokenLength && token[i] >= '0' && token[i] <= '9'; i++) {
+            anyDigit = true;
+            if (mantissa != 0 || token[i] != '0') {
+                mantissa = mantissa * 10 + (token[i] - '0');
+                digits++;
+            }
+        }
+        if (i < tokenLength && token[i] == '.') {
+            for (i++; i < tokenLength && token[i] >= '0' && token[i] <= '9'; i++) {
+                anyDigit = true;
+                if (mantissa != 0 || token[i] != '0') {
+                    mantissa = mantissa * 10 + (token[i] - '0');
+                    digits++;
+                }
+                exponent--;
+            }
+        }
+        if (anyDigit && i < tokenLength && (token[i] == 'e' || token[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < tokenLength && (token[i] == '-' || token[i] == '+')) {
+                negativeExponent = token[i] == '-';
+                i++;
+            }
+            int e = 0;
+            int start = i;
+            for (; i < tokenLength && token[i] >= '0' && token[i] <= '9'; i++) {
+                e = Math.min(e * 10 + (token[i] - '0'), 100000);
+            }
+            if (i == start) {
+                return parseSlow();
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (!anyDigit || i != tokenLength || digits > 15) {
+            return parseSlow();
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent <= 22) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && exponent >= -22) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return parseSlow();
+        }
+        return negative ? -value : value;
+    }
+
+    private double parseSlow() {
+        return Double.parseDouble(text());
+    }
+
+    private int read() throws IOException {
+        if (bufferPos == bufferEnd) {
+            bufferEnd = reader.read(buffer, 0, buffer.length);
+            bufferPos = 0;
+            if (bufferEnd <= 0) {
+                bufferEnd = 0;
+                return -1;
+            }
+        }
+        return buffer[bufferPos++];
+    }
+}
@@ -1,6 +1,11 @@
 package com.wizardfight.recognition;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 
 /**
@@ -23,21 +28,123 @@ public class HMM implements Serializable {
     double[] classDistances = new double[0];
     double[] nullRejectionThresholds;
 
+    // Settings from the GRT model header, used for training. Models saved
+    // before they existed get the defaults in readObject
+    int numSymbols = 0; // 0: taken from the class models when training
+    int numStates = 0; // The default number of states for each model
+    int modelType = 1; // 0: ergodic, 1: left-right
+    int delta = 1; // The largest state jump of a left-right model
+    int minNumEpochs = 0;
+    int maxNumEpochs = 100;
+    double minChange = 1.0e-5;
+    int numRandomTrainingIterations = 20;
 
-    final ArrayList<HiddenMarkovModel> models = new ArrayList<HiddenMarkovModel>();
+    ArrayList<HiddenMarkovModel> models = new ArrayList<HiddenMarkovModel>();
+    // Scores the class models in parallel for large vocabularies
+    private transient ParallelClassScorer scorer;
+    private transient ScoringMode scoringMode;
+    private transient double beamWidth; // 0 for the default
+    // The class models packed for scoring, rebuilt when models change
+    private transient ModelPack pack;
+    // Per class prune counters of the default metrics, fetched with pack
+    private transient AtomicLongArray classPruned;
+
+    /**
+     * Reads the fields one by one, so that a training setting missing from
+     * an older stream gets its default rather than 0.
+     */
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        useNullRejection = fields.get("useNullRejection", false);
+        numClasses = fields.get("numClasses", 0);
+        predictedClassLabel = fields.get("predictedClassLabel", 0);
+        bestDistance = fields.get("bestDistance", 0.0);
+        maxLikelihood = fields.get("maxLikelihood", 0.0);
+        classLabels = (int[]) fields.get("classLabels", new int[0]);
+        classLikelihoods = (double[]) fields.get("classLikelihoods",
+                new double[0]);
+        classDistances = (double[]) fields.get("classDistances", new double[0]);
+        nullRejectionThresholds = (double[]) fields.get(
+                "nullRejectionThresholds", null);
+        models = (ArrayList<HiddenMarkovModel>) fields.get("models", null);
+        if (models == null) {
+            models = new ArrayList<HiddenMarkovModel>();
+        }
+
+        // Settings missing from the stream keep the defaults
+        numSymbols = fields.defaulted("numSymbols") ? 0
+                : fields.get("numSymbols", 0);
+        numStates = fields.defaulted("numStates") ? 0
+                : fields.get("numStates", 0);
+        modelType = fields.defaulted("modelType") ? 1
+                : fields.get("modelType", 1);
+        delta = fields.defaulted("delta") ? 1 : fields.get("delta", 1);
+        minNumEpochs = fields.defaulted("minNumEpochs") ? 0
+                : fields.get("minNumEpochs", 0);
+        maxNumEpochs = fields.defaulted("maxNumEpochs") ? 100
+                : fields.get("maxNumEpochs", 100);
+        minChange = fields.defaulted("minChange") ? 1.0e-5
+                : fields.get("minChange", 1.0e-5);
+        numRandomTrainingIterations =
+                fields.defaulted("numRandomTrainingIterations") ? 20
+                : fields.get("numRandomTrainingIterations", 20);
+    }
 
     public int getPredictedClassLabel() {
     	return predictedClassLabel;
     }
 
-    public void predict(int[] timeseries) {
-        final int M = timeseries.length;
-        int[] observationSequence = new int[M];
+    /**
+     * Sets the scorer predict uses to split the class models across threads.
+     *
+     * @param ParallelClassScorer scorer: the scorer to use, or null for
+     * ParallelClassScorer.getDefault()
+     */
+    public void setParallelScorer(ParallelClassScorer scorer) {
+        this.scorer = scorer;
+    }
+
+    /**
+     * Sets how predict scores the class models.
+     *
+     * @param ScoringMode scoringMode: the mode, or null for
+     * ScoringMode.getDefault()
+     */
+    public void setScoringMode(ScoringMode scoringMode) {
+        this.scoringMode = scoringMode;
+    }
 
-        for (int i = 0; i < M; i++) {
-            observationSequence[i] = timeseries[i];
+    /**
+     * @return the class models packed for scoring, rebuilt when the list of
+     * models has changed; the parameters of a model must not change once it
+     * has been used for prediction
+     */
+    private ModelPack getPack() {
+        ModelPack p = pack;
+        if (p == null || !p.isPackOf(models)) {
+            p = new ModelPack(models.toArray(new HiddenMarkovModel[models.size()]));
+            classPruned = RecognitionMetrics.getDefault()
+                    .getClassPruneCounters(p.numClasses);
+            pack = p;
         }
+        return p;
+    }
+
+    /**
+     * Sets the beam width of lockstep scoring, see BeamScorer. Pruned classes
+     * get a distance of Double.NEGATIVE_INFINITY.
+     *
+     * @param double beamWidth: the beam width, Double.POSITIVE_INFINITY to
+     * score every class to the end, or 0 for the wizardfight.beamWidth
+     * system property
+     */
+    public void setBeamWidth(double beamWidth) {
+        this.beamWidth = beamWidth;
+    }
 
+    public void predict(int[] timeseries) {
         if (classLikelihoods.length != numClasses) {
             classLikelihoods = new double[numClasses];
         }
@@ -45,12 +152,40 @@ public class HMM implements Serializable {
             classDistances = new double[numClasses];
         }
 
-        bestDistance = -99e+99;
+        ParallelClassScorer s = scorer == null
+                ? ParallelClassScorer.getDefault() : scorer;
+        ScoringMode mode = scoringMode == null
+                ? ScoringMode.getDefault() : scoringMode;
+        double beam = beamWidth > 0 ? beamWidth : BeamScorer.DEFAULT_BEAM_WIDTH;
+        ModelPack p = getPack();
+        if (beam != Double.POSITIVE_INFINITY) {
+            BeamScorer.score(p, mode, beam, timeseries, classDistances,
+                    classPruned);
+        } else {
+            s.score(p, mode, timeseries, classDistances, null);
+        }
+
+        int bestIndex = computeLikelihoods(classDistances, classLikelihoods);
+        bestDistance = classDistances[bestIndex];
+        maxLikelihood = classLikelihoods[bestIndex];
+        predictedClassLabel = getClassLabel(classLabels, useNullRejection,
+                nullRejectionThresholds, bestIndex, maxLikelihood);
+    }
+
+    /**
+     * Turns the class distances (log likelihoods) into likelihoods that sum
+     * to one.
+     *
+     * @param double[] classDistances: the log likelihood of each class
+     * @param double[] classLikelihoods: receives the normalised likelihoods
+     * @return the index of the class with the highest log likelihood
+     */
+    static int computeLikelihoods(double[] classDistances,
+            double[] classLikelihoods) {
+        double bestDistance = -99e+99;
         int bestIndex = 0;
         double sum = 0;
-        for (int k = 0; k < numClasses; k++) {
-            classDistances[k] = models.get(k).predict(observationSequence);
-
+        for (int k = 0; k < classDistances.length; k++) {
             // Set the class likelihood as the antilog of the class distances
             classLikelihoods[k] = antilog(classDistances[k]);
 
@@ -65,26 +200,112 @@ public class HMM implements Serializable {
         }
 
         // Turn the class distances into proper likelihoods
-        for (int k = 0; k < numClasses; k++) {
+        for (int k = 0; k < classDistances.length; k++) {
             classLikelihoods[k] /= sum;
         }
+        return bestIndex;
+    }
 
-        maxLikelihood = classLikelihoods[bestIndex];
-        predictedClassLabel = classLabels[bestIndex];
-
-        if (useNullRejection) {
-            if (maxLikelihood > nullRejectionThresholds[bestIndex]) {
-                predictedClassLabel = classLabels[bestIndex];
-            } else {
-                predictedClassLabel = 0;
-            }
+    /**
+     * @return the label of the best class, or 0 if null rejection is enabled
+     * and the best likelihood does not pass the class threshold
+     */
+    static int getClassLabel(int[] classLabels, boolean useNullRejection,
+            double[] nullRejectionThresholds, int bestIndex,
+            double maxLikelihood) {
+        if (useNullRejection
+                && !(maxLikelihood > nullRejectionThresholds[bestIndex])) {
+            return 0;
         }
+        return classLabels[bestIndex];
     }
 
-    private double antilog(double d) {
+    private static double antilog(double d) {
         return Math.exp(d);
     }
 
+    /**
+     * Trains one model per class label with the Baum-Welch algorithm, using
+     * the NumStates, NumSymbols, ModelType, Delta, MinNumEpochs,
+     * MaxNumEpochs, MinChange and NumRandomTrainingIterations settings. If
+     * NumStates or NumSymbols is not set it is taken from the current class
+     * models.
+     *
+     * @param List<int[]> sequences: the quantized training sequences
+     * @param int[] labels: the class label of each sequence
+     * @return true if every class was trained, false otherwise
+     */
+    public boolean train(List<int[]> sequences, int[] labels) {
+        return train(sequences, labels, new BaumWelchTrainer());
+    }
+
+    /**
+     * Trains the models on the given trainer, which decides the thread pool
+     * the expectation step runs on.
+     */
+    public boolean train(List<int[]> sequences, int[] labels,
+            BaumWelchTrainer trainer) {
+        if (sequences.size() != labels.length || labels.length == 0) {
+            System.err.println("train(...) - The number of sequences and labels do not match!");
+            return false;
+        }
+        // Unset sizes are taken from the current class models
+        int N = numStates;
+        int M = numSymbols;
+        if (!models.isEmpty()) {
+            HiddenMarkovModel first = models.get(0);
+            if (N <= 0) {
+                N = first.numStates;
+            }
+            if (M <= 0 && first.b != null && first.b.length > 0) {
+                M = first.b[0].length;
+            }
+        }
+        if (N <= 0 || M <= 0) {
+            System.err.println("train(...) - NumStates and NumSymbols must be set before training!");
+            return false;
+        }
+        trainer.setMinNumEpochs(minNumEpochs);
+        trainer.setMaxNumEpochs(maxNumEpochs);
+        trainer.setMinChange(minChange);
+        trainer.setNumRandomTrainingIterations(numRandomTrainingIterations);
+
+        TreeSet<Integer> labelSet = new TreeSet<Integer>();
+        for (int label : labels) {
+            labelSet.add(label);
+        }
+        ArrayList<HiddenMarkovModel> trained = new ArrayList<HiddenMarkovModel>();
+        int[] newLabels = new int[labelSet.size()];
+        int k = 0;
+        for (int label : labelSet) {
+            ArrayList<int[]> classData = new ArrayList<int[]>();
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    classData.add(sequences.get(i));
+                }
+            }
+            HiddenMarkovModel model = trainer.train(classData, N, M,
+                    modelType, delta);
+            if (model == null) {
+                System.err.println("train(...) - Failed to train model for class " + label);
+                return false;
+            }
+            model.maxNumIter = maxNumEpochs;
+            model.numRandomTrainingIterations = numRandomTrainingIterations;
+            trained.add(model);
+            newLabels[k++] = label;
+        }
+
+        models.clear();
+        models.addAll(trained);
+        numClasses = newLabels.length;
+        classLabels = newLabels;
+        nullRejectionThresholds = new double[numClasses];
+        classLikelihoods = new double[numClasses];
+        classDistances = new double[numClasses];
+        return true;
+    }
+
     void clear() {
         models.clear();
     }
@@ -2,8 +2,23 @@ package com.wizardfight.recognition;
 
 class HMMTrainingObject {
 
-	MatrixDouble alpha; // The forward estimate matrix
-	MatrixDouble beta; // The backward estimate matrix
-	double[] c; // The scaling coefficient vector
+	MatrixDouble alpha = new MatrixDouble(); // The forward estimate matrix
+	MatrixDouble beta = new MatrixDouble(); // The backward estimate matrix
+	double[] c = new double[0]; // The scaling coefficient vector
 	double pk = 0.0; // P( O | Model )
+
+	/**
+	 * Makes room for a sequence of length T under a model with N states,
+	 * keeping the buffers if they are already large enough.
+	 */
+	void resize(int T, int N) {
+		if (alpha.rows < T || alpha.cols != N) {
+			int rows = Math.max(T, alpha.cols == N ? alpha.rows * 2 : 0);
+			alpha.resize(rows, N);
+			beta.resize(rows, N);
+		}
+		if (c.length < T) {
+			c = new double[alpha.rows];
+		}
+	}
 }
@@ -1,5 +1,7 @@
 package com.wizardfight.recognition;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
 /**
@@ -16,82 +18,243 @@ class HiddenMarkovModel implements Serializable {
     double[][] a; // The transitions probability matrix
     double[][] b; // The emissions probability matrix
 
+    // Settings from the GRT model file, used for training. Models saved
+    // before they existed get the defaults in readObject
+    int numSymbols = 0;
+    int modelType = 1; // 0: ergodic, 1: left-right
+    int delta = 1; // The largest state jump of a left-right model
+    double threshold = 0;
+    int maxNumIter = 100;
+    int numRandomTrainingIterations = 5;
+
+    // The log tables for Viterbi scoring, built on first use
+    private transient volatile LogModel logModel;
+
+    /**
+     * Reads the fields one by one, so that a training setting missing from
+     * an older stream gets its default rather than 0. A missing number of
+     * symbols is taken from the emission matrix.
+     */
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        numStates = fields.get("numStates", 0);
+        estimatedStates = (int[]) fields.get("estimatedStates", new int[0]);
+        pi = (double[]) fields.get("pi", null);
+        a = (double[][]) fields.get("a", null);
+        b = (double[][]) fields.get("b", null);
+
+        if (fields.defaulted("numSymbols")) {
+            numSymbols = b != null && b.length > 0 ? b[0].length : 0;
+        } else {
+            numSymbols = fields.get("numSymbols", 0);
+        }
+        modelType = fields.defaulted("modelType") ? 1
+                : fields.get("modelType", 1);
+        delta = fields.defaulted("delta") ? 1 : fields.get("delta", 1);
+        threshold = fields.defaulted("threshold") ? 0
+                : fields.get("threshold", 0.0);
+        maxNumIter = fields.defaulted("maxNumIter") ? 100
+                : fields.get("maxNumIter", 100);
+        numRandomTrainingIterations =
+                fields.defaulted("numRandomTrainingIterations") ? 5
+                : fields.get("numRandomTrainingIterations", 5);
+    }
+
+    /**
+     * @return a deep copy of this model's parameters
+     */
+    HiddenMarkovModel copy() {
+        HiddenMarkovModel model = new HiddenMarkovModel();
+        model.numStates = numStates;
+        model.numSymbols = numSymbols;
+        model.modelType = modelType;
+        model.delta = delta;
+        model.threshold = threshold;
+        model.maxNumIter = maxNumIter;
+        model.numRandomTrainingIterations = numRandomTrainingIterations;
+        model.pi = pi.clone();
+        model.a = new double[a.length][];
+        for (int i = 0; i < a.length; i++) {
+            model.a[i] = a[i].clone();
+        }
+        model.b = new double[b.length][];
+        for (int i = 0; i < b.length; i++) {
+            model.b[i] = b[i].clone();
+        }
+        return model;
+    }
+
+    // Two rolling forward rows per thread, grown on demand
+    private static final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            return new double[2][0];
+        }
+    };
+
+    /**
+     * Computes the log likelihood of the observation sequence with the scaled
+     * forward algorithm. Only the previous forward row is kept, so once the
+     * per-thread scratch rows are large enough no memory is allocated.
+     *
+     * @param int[] obs: the observation sequence, must not be empty
+     * @return the log likelihood of obs given this model
+     */
     double predict(int[] obs) {
-        final int N = numStates;
-        final int T = obs.length;
-        int t, i, j;
-        MatrixDouble alpha = new MatrixDouble(T, numStates);
-        double[] c = new double[T];
+        return predict(obs, 0, obs.length, null);
+    }
 
-	// //////////////// Run the forward algorithm ////////////////////////
-        // Step 1: Init at t=0
-        t = 0;
-        c[t] = 0.0;
-        for (i = 0; i < N; i++) {
-            double val = pi[i] * b[i][obs[t]];
-            alpha.dataPtr[t][i] = val;
-            c[t] += val;
+    /**
+     * Same as predict(int[]), but also stores the most likely state at each
+     * timestep in estimatedStates. The states are chosen one timestep at a
+     * time from the forward variables, so they need not form a possible
+     * path; see viterbi for the best path.
+     */
+    double predictStates(int[] obs) {
+        if (estimatedStates.length != obs.length) {
+            estimatedStates = new int[obs.length];
         }
+        return predict(obs, 0, obs.length, estimatedStates);
+    }
 
-        // Set the inital scaling coeff
-        c[t] = 1.0 / c[t];
+    /**
+     * @return the log tables of this model, built on the first call, so the
+     * parameters must not change afterwards
+     */
+    LogModel getLogModel() {
+        LogModel m = logModel;
+        if (m == null) {
+            m = new LogModel(this);
+            logModel = m;
+        }
+        return m;
+    }
 
-        // Scale alpha
-        for (i = 0; i < N; i++) {
-            double val = alpha.dataPtr[t][i];
-            val *= c[t];
-            alpha.dataPtr[t][i] = val;
+    /**
+     * Computes the log probability of the best state path with the Viterbi
+     * algorithm and stores that path in estimatedStates.
+     *
+     * @param int[] obs: the observation sequence, must not be empty
+     * @return the log probability of the best path of obs
+     */
+    double viterbi(int[] obs) {
+        if (estimatedStates.length != obs.length) {
+            estimatedStates = new int[obs.length];
+        }
+        return getLogModel().viterbi(obs, 0, obs.length, estimatedStates);
+    }
+
+    /**
+     * Computes the log likelihood of obs[offset, offset+length) using the
+     * calling thread's scratch rows.
+     *
+     * @param int[] states: if not null, receives the most likely state at each
+     * timestep, must hold at least length values
+     */
+    double predict(int[] obs, int offset, int length, int[] states) {
+        double[][] rows = scratch.get();
+        if (rows[0].length < numStates) {
+            rows[0] = new double[numStates];
+            rows[1] = new double[numStates];
+        }
+        return predict(obs, offset, length, rows[0], rows[1], states);
+    }
+
+    /**
+     * Computes the log likelihood of obs[offset, offset+length) using caller
+     * owned scratch rows.
+     *
+     * @param double[] prev, next: scratch rows of at least numStates values
+     * @param int[] states: if not null, receives the most likely state at each
+     * timestep, must hold at least length values
+     */
+    double predict(int[] obs, int offset, int length, double[] prev,
+            double[] next, int[] states) {
+        // Step 1: Init at t=0
+        double loglikelihood = Math.log(forwardInit(obs[offset], prev));
+        if (states != null) {
+            states[0] = argmax(prev);
         }
 
         // Step 2: Induction
-        for (t = 1; t < T; t++) {
-            c[t] = 0.0;
-            for (j = 0; j < N; j++) {
-                alpha.dataPtr[t][j] = 0.0;
-                for (i = 0; i < N; i++) {
-                    double val = alpha.dataPtr[t][j];
-                    val += alpha.dataPtr[t - 1][i] * a[i][j];
-                    alpha.dataPtr[t][j] = val;
-
-                }
-                double val = alpha.dataPtr[t][j];
-                val *= b[j][obs[t]];
-                alpha.dataPtr[t][j] = val;
-                c[t] += alpha.dataPtr[t][j];
+        for (int t = 1; t < length; t++) {
+            loglikelihood += Math.log(forwardStep(prev, next, obs[offset + t]));
+            if (states != null) {
+                states[t] = argmax(next);
             }
+            double[] tmp = prev;
+            prev = next;
+            next = tmp;
+        }
+        return -loglikelihood; // Return the negative log likelihood
+    }
 
-            // Set the scaling coeff
-            c[t] = 1.0 / c[t];
-
-            // Scale Alpha
-            for (j = 0; j < N; j++) {
-                double val = alpha.dataPtr[t][j];
-                val *= c[t];
-                alpha.dataPtr[t][j] = val;
+    private int argmax(double[] alpha) {
+        double maxValue = 0;
+        int state = 0;
+        for (int i = 0; i < numStates; i++) {
+            if (alpha[i] > maxValue) {
+                maxValue = alpha[i];
+                state = i;
             }
         }
+        return state;
+    }
 
-        if (estimatedStates.length != T) {
-            estimatedStates = new int[T];
+    /**
+     * Runs the first step (t=0) of the scaled forward algorithm.
+     *
+     * @param int o: the first observation symbol
+     * @param double[] alpha: receives the scaled forward variables, must hold
+     * at least numStates values
+     * @return the scaling coefficient c[0]
+     */
+    double forwardInit(int o, double[] alpha) {
+        final int N = numStates;
+        double c = 0.0;
+        for (int i = 0; i < N; i++) {
+            double val = pi[i] * b[i][o];
+            alpha[i] = val;
+            c += val;
+        }
+
+        c = 1.0 / c;
+        for (int i = 0; i < N; i++) {
+            alpha[i] *= c;
         }
-        for (t = 0; t < T; t++) {
-            double maxValue = 0;
-            for (i = 0; i < N; i++) {
-                if (alpha.dataPtr[t][i] > maxValue) {
-                    maxValue = alpha.dataPtr[t][i];
-                    estimatedStates[t] = i;
-                }
+        return c;
+    }
+
+    /**
+     * Advances the scaled forward algorithm by one observation.
+     *
+     * @param double[] prev: the scaled forward variables at t-1
+     * @param double[] next: receives the scaled forward variables at t, must
+     * not be the same array as prev
+     * @param int o: the observation symbol at t
+     * @return the scaling coefficient c[t]
+     */
+    double forwardStep(double[] prev, double[] next, int o) {
+        final int N = numStates;
+        double c = 0.0;
+        for (int j = 0; j < N; j++) {
+            double val = 0.0;
+            for (int i = 0; i < N; i++) {
+                val += prev[i] * a[i][j];
             }
+            val *= b[j][o];
+            next[j] = val;
+            c += val;
         }
 
-        // Termination
-        double loglikelihood = 0.0;
-        for (t = 0; t < T; t++) {
-            loglikelihood += Math.log(c[t]);
+        c = 1.0 / c;
+        for (int j = 0; j < N; j++) {
+            next[j] *= c;
         }
-        return -loglikelihood; // Return the negative log likelihood
+        return c;
     }
-    
+
      public void print() {
 //        System.out.println(trained + " " + useScaling + " " + useNullRejection);
 //        System.out.println(delta + " " + maxNumIter + " " + numClasses);
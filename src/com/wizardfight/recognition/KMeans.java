@@ -2,9 +2,16 @@ package com.wizardfight.recognition;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * This class implements the KMeans clustering algorithm.
+ *
+ * Training seeds the clusters with k-means++ and then runs Lloyd iterations.
+ * The samples are kept in one primitive array, and the assignment and
+ * centroid accumulation passes run over chunks of it on a fork-join pool.
  */
 class KMeans implements Serializable {
 
@@ -32,6 +39,11 @@ class KMeans implements Serializable {
     protected int numInputDimensions;
     protected int numTrainingIterationsToConverge;
 
+    protected long seed = 0;
+    private transient ForkJoinPool pool;
+
+    private static final int GRAIN_SIZE = 1 << 14; // Samples per task
+
     MatrixDouble getClusters() {
         return clusters;
     }
@@ -55,4 +67,337 @@ class KMeans implements Serializable {
     public void setMinChange(double minChange) {
         this.minChange = minChange;
     }
+
+    public void setUseScaling(boolean useScaling) {
+        this.useScaling = useScaling;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the pool the training passes run on, the shared training pool by
+     * default.
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Clusters the samples.
+     *
+     * @param double[] samples: interleaved input vectors, numDimensions
+     * values per sample
+     * @param int numSamples: the number of samples to use
+     * @param int numDimensions: the number of values per sample
+     * @return true if the model was trained, false otherwise
+     */
+    public boolean train(double[] samples, int numSamples, int numDimensions) {
+        trained = false;
+        if (numClusters <= 0 || numDimensions <= 0) {
+            System.err.println("train(...) - NumClusters and the number of dimensions must be greater than zero!");
+            return false;
+        }
+        if (numSamples < numClusters
+                || samples.length < (long) numSamples * numDimensions) {
+            System.err.println("train(...) - There are not enough training samples!");
+            return false;
+        }
+        ForkJoinPool p = pool != null ? pool : BaumWelchTrainer.getDefaultPool();
+        numInputDimensions = numDimensions;
+        numTrainingSamples = numSamples;
+
+        // Scale each dimension to [0 1] so no dimension dominates the distance
+        ranges.clear();
+        double[] data = samples;
+        if (useScaling) {
+            double[] minMax = p.invoke(new RangeTask(samples, numDimensions, 0, numSamples));
+            for (int d = 0; d < numDimensions; d++) {
+                ranges.add(new MinMax(minMax[2 * d], minMax[2 * d + 1]));
+            }
+            data = new double[numSamples * numDimensions];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = scale(samples[i], ranges.get(i % numDimensions));
+            }
+        }
+
+        double[][] centres = seed(p, data, numSamples, numDimensions);
+
+        assign = new int[numSamples];
+        for (int i = 0; i < numSamples; i++) {
+            assign[i] = -1;
+        }
+        count = new int[numClusters];
+        thetaTracker.clear();
+        converged = false;
+        double lastTheta = 0;
+        int epoch = 0;
+        while (epoch < maxNumEpochs) {
+            Codebook codebook = new Codebook(centres, numClusters, numDimensions);
+            Stats stats = p.invoke(new AssignTask(codebook, data, assign, 0, numSamples));
+            epoch++;
+
+            // Move each centre to the mean of its samples, empty clusters stay
+            for (int k = 0; k < numClusters; k++) {
+                count[k] = (int) stats.counts[k];
+                if (stats.counts[k] > 0) {
+                    for (int d = 0; d < numDimensions; d++) {
+                        centres[k][d] = stats.sums[k * numDimensions + d] / stats.counts[k];
+                    }
+                }
+            }
+            nchg = stats.changes;
+            finalTheta = stats.theta;
+            if (computeTheta) {
+                thetaTracker.add(finalTheta);
+            }
+            if (epoch >= minNumEpochs
+                    && (nchg == 0 || Math.abs(lastTheta - finalTheta) < minChange)) {
+                converged = true;
+                break;
+            }
+            lastTheta = finalTheta;
+        }
+        numTrainingIterationsToConverge = epoch;
+
+        // Keep the centres in the units of the input
+        clusters.resize(numClusters, numDimensions);
+        for (int k = 0; k < numClusters; k++) {
+            for (int d = 0; d < numDimensions; d++) {
+                clusters.dataPtr[k][d] = useScaling
+                        ? unscale(centres[k][d], ranges.get(d)) : centres[k][d];
+            }
+        }
+        trained = true;
+        return true;
+    }
+
+    /**
+     * @return a quantizer using the trained clusters, or null if the model
+     * is not trained. The quantizer measures distances in the units of the
+     * input, so with scaling only the training itself is balanced across
+     * dimensions.
+     */
+    public KMeansQuantizer getQuantizer() {
+        if (!trained) {
+            return null;
+        }
+        double[][] centres = new double[numClusters][];
+        for (int k = 0; k < numClusters; k++) {
+            centres[k] = clusters.dataPtr[k].clone();
+        }
+        KMeansQuantizer quantizer = new KMeansQuantizer(numClusters);
+        quantizer.setClusters(centres);
+        return quantizer;
+    }
+
+    // k-means++: each new centre is drawn with probability proportional to
+    // its squared distance from the nearest centre chosen so far
+    private double[][] seed(ForkJoinPool p, double[] data, int numSamples,
+            int numDimensions) {
+        Random random = new Random(seed);
+        double[][] centres = new double[numClusters][numDimensions];
+        double[] minDist = new double[numSamples];
+        int chosen = random.nextInt(numSamples);
+        System.arraycopy(data, chosen * numDimensions, centres[0], 0, numDimensions);
+        for (int i = 0; i < numSamples; i++) {
+            minDist[i] = Double.MAX_VALUE;
+        }
+        for (int k = 1; k < numClusters; k++) {
+            double total = p.invoke(new SeedTask(centres[k - 1], data, minDist, 0, numSamples));
+            if (total > 0) {
+                double r = random.nextDouble() * total;
+                chosen = numSamples - 1;
+                for (int i = 0; i < numSamples; i++) {
+                    r -= minDist[i];
+                    if (r < 0) {
+                        chosen = i;
+                        break;
+                    }
+                }
+            } else {
+                // Fewer distinct samples than clusters
+                chosen = random.nextInt(numSamples);
+            }
+            System.arraycopy(data, chosen * numDimensions, centres[k], 0, numDimensions);
+        }
+        return centres;
+    }
+
+    private static double scale(double x, MinMax range) {
+        double width = range.maxValue - range.minValue;
+        return width == 0 ? 0 : (x - range.minValue) / width;
+    }
+
+    private static double unscale(double x, MinMax range) {
+        return range.minValue + x * (range.maxValue - range.minValue);
+    }
+
+    /**
+     * Sums, counts and the squared error of one Lloyd assignment pass.
+     */
+    private static final class Stats {
+
+        final double[] sums;
+        final long[] counts;
+        double theta = 0;
+        int changes = 0;
+
+        Stats(int K, int D) {
+            sums = new double[K * D];
+            counts = new long[K];
+        }
+
+        Stats add(Stats other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+            }
+            for (int k = 0; k < counts.length; k++) {
+                counts[k] += other.counts[k];
+            }
+            theta += other.theta;
+            changes += other.changes;
+            return this;
+        }
+    }
+
+    private static final class AssignTask extends RecursiveTask<Stats> {
+
+        private static final long serialVersionUID = 1L;
+        private final Codebook codebook;
+        private final double[] data;
+        private final int[] assign;
+        private final int from;
+        private final int to;
+
+        AssignTask(Codebook codebook, double[] data, int[] assign, int from, int to) {
+            this.codebook = codebook;
+            this.data = data;
+            this.assign = assign;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Stats compute() {
+            if (to - from > GRAIN_SIZE) {
+                int mid = (from + to) >>> 1;
+                AssignTask right = new AssignTask(codebook, data, assign, mid, to);
+                right.fork();
+                Stats stats = new AssignTask(codebook, data, assign, from, mid).compute();
+                return stats.add(right.join());
+            }
+            final int D = codebook.numDimensions;
+            Stats stats = new Stats(codebook.numClusters, D);
+            double[] dist = new double[codebook.numClusters];
+            for (int i = from; i < to; i++) {
+                int offset = i * D;
+                int k = codebook.nearest(data, offset, dist);
+                if (assign[i] != k) {
+                    assign[i] = k;
+                    stats.changes++;
+                }
+                stats.counts[k]++;
+                stats.theta += dist[k];
+                for (int d = 0; d < D; d++) {
+                    stats.sums[k * D + d] += data[offset + d];
+                }
+            }
+            return stats;
+        }
+    }
+
+    // Lowers the nearest centre distances with a new centre, returns their sum
+    private static final class SeedTask extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+        private final double[] centre;
+        private final double[] data;
+        private final double[] minDist;
+        private final int from;
+        private final int to;
+
+        SeedTask(double[] centre, double[] data, double[] minDist, int from, int to) {
+            this.centre = centre;
+            this.data = data;
+            this.minDist = minDist;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (to - from > GRAIN_SIZE) {
+                int mid = (from + to) >>> 1;
+                SeedTask right = new SeedTask(centre, data, minDist, mid, to);
+                right.fork();
+                double sum = new SeedTask(centre, data, minDist, from, mid).compute();
+                return sum + right.join();
+            }
+            final int D = centre.length;
+            double sum = 0;
+            for (int i = from; i < to; i++) {
+                double dist = 0;
+                for (int d = 0; d < D; d++) {
+                    double diff = data[i * D + d] - centre[d];
+                    dist += diff * diff;
+                }
+                if (dist < minDist[i]) {
+                    minDist[i] = dist;
+                }
+                sum += minDist[i];
+            }
+            return sum;
+        }
+    }
+
+    private static final class RangeTask extends RecursiveTask<double[]> {
+
+        private static final long serialVersionUID = 1L;
+        private final double[] data;
+        private final int numDimensions;
+        private final int from;
+        private final int to;
+
+        RangeTask(double[] data, int numDimensions, int from, int to) {
+            this.data = data;
+            this.numDimensions = numDimensions;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from > GRAIN_SIZE) {
+                int mid = (from + to) >>> 1;
+                RangeTask right = new RangeTask(data, numDimensions, mid, to);
+                right.fork();
+                double[] minMax = new RangeTask(data, numDimensions, from, mid).compute();
+                double[] other = right.join();
+                for (int d = 0; d < numDimensions; d++) {
+                    minMax[2 * d] = Math.min(minMax[2 * d], other[2 * d]);
+                    minMax[2 * d + 1] = Math.max(minMax[2 * d + 1], other[2 * d + 1]);
+                }
+                return minMax;
+            }
+            double[] minMax = new double[2 * numDimensions];
+            for (int d = 0; d < numDimensions; d++) {
+                minMax[2 * d] = Double.MAX_VALUE;
+                minMax[2 * d + 1] = -Double.MAX_VALUE;
+            }
+            for (int i = from; i < to; i++) {
+                for (int d = 0; d < numDimensions; d++) {
+                    double v = data[i * numDimensions + d];
+                    if (v < minMax[2 * d]) {
+                        minMax[2 * d] = v;
+                    }
+                    if (v > minMax[2 * d + 1]) {
+                        minMax[2 * d + 1] = v;
+                    }
+                }
+            }
+            return minMax;
+        }
+    }
 }
@@ -7,11 +7,15 @@ public class KMeansQuantizer implements Serializable {
 
     private static final long serialVersionUID = 4L;
 
-    int numClusters; 
+    int numClusters;
     int numInputDimensions = 0; //TODO set as constant after changing serizalization
     double[][] clusters;
     final ArrayList<Double> featureVector = new ArrayList<Double>();
-    ArrayList<Double> quantizationDistances = new ArrayList<Double>();
+
+    // Primitive copy of clusters, built on first use
+    private transient volatile Codebook codebook;
+    // The symbol of the last quantize(double[]) call, for getFeatureVector
+    private transient volatile int quantizedValue;
 
     /**
      * Default constructor. Initalizes the KMeansQuantizer, setting the number
@@ -25,57 +29,84 @@ public class KMeansQuantizer implements Serializable {
         featureVector.add(0.0);
     }
 
-    public int quantize(double[] inputVector) {
-        // Find the minimum cluster
-        double minDist = Double.MAX_VALUE;
-        int quantizedValue = 0;
-
-        for (int k = 0; k < numClusters; k++) {
-            // Compute the squared Euclidean distance
-            quantizationDistances.add(k, 0.0);
-            for (int i = 0; i < numInputDimensions; i++) {
-                double val = quantizationDistances.get(k);
-                val += Math.pow(inputVector[i] - clusters[k][i], 2);
-                quantizationDistances.set(k, val);
-            }
+    /**
+     * Replaces the cluster centres of the quantizer.
+     *
+     * @param double[][] clusters: the new centres, clusters[k][d]
+     */
+    void setClusters(double[][] clusters) {
+        this.clusters = clusters;
+        numClusters = clusters == null ? 0 : clusters.length;
+        if (numClusters > 0) {
+            numInputDimensions = clusters[0].length;
+        }
+        codebook = null;
+    }
 
-            if (quantizationDistances.get(k) < minDist) {
-                minDist = quantizationDistances.get(k);
-                quantizedValue = k;
-            }
+    Codebook getCodebook() {
+        Codebook cb = codebook;
+        if (cb == null) {
+            cb = new Codebook(clusters, numClusters, numInputDimensions);
+            codebook = cb;
         }
-        featureVector.set(0, (double) quantizedValue);
+        return cb;
+    }
+
+    /**
+     * Quantizes one input vector. The distances are computed in per thread
+     * scratch, so any number of threads may quantize at once.
+     *
+     * @return the index of the nearest cluster
+     */
+    public int quantize(double[] inputVector) {
+        int symbol = getCodebook().nearest(inputVector, 0);
+        quantizedValue = symbol;
+        return symbol;
+    }
 
-        return quantizedValue;
+    /**
+     * Quantizes a whole recording in one pass.
+     *
+     * @param double[] samples: interleaved input vectors, numInputDimensions
+     * values per sample
+     * @return the symbol of every sample
+     */
+    public int[] quantize(double[] samples, int offset, int numSamples) {
+        int[] timeSeries = new int[numSamples];
+        getCodebook().quantize(samples, offset, numSamples, timeSeries, 0);
+        return timeSeries;
     }
-    
+
+    /**
+     * Kept for compatibility, the quantizer no longer keeps per gesture
+     * state.
+     */
     public void refresh() {
-        quantizationDistances = new ArrayList<Double>();
     }
 
+    /**
+     * @return the symbol of the last quantize(double[]) call on any thread.
+     * The list is shared, so this method is not thread safe.
+     */
     public ArrayList<Double> getFeatureVector() {
+        featureVector.set(0, (double) quantizedValue);
         return featureVector;
     }
-    
+
     public void print() {
         System.out.println( numClusters + " " +  numInputDimensions);
-        
-        for(Double d: featureVector) {
+
+        for(Double d: getFeatureVector()) {
             System.out.print(d + " " );
         }
         System.out.println("Clusters:");
-        
+
         for(int i=0; i<clusters.length; i++) {
             for(int j=0; j<clusters[0].length; j++) {
                 System.out.print(clusters[i][j] + " ");
             }
             System.out.println();
         }
-        
-        for(Double d: quantizationDistances) {
-            System.out.print(d + " " );
-        }
-        System.out.println();
         System.out.println("===============================");
     }
 }
@@ -0,0 +1,61 @@
+package com.wizardfight.recognition;
+
+/**
+ * This class is a snapshot of a LatencyHistogram, in nanoseconds, as shown
+ * by the recognition MBean.
+ */
+public final class LatencyStats {
+
+    private final long count;
+    private final double meanNanos;
+    private final long p50Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    public LatencyStats(long count, double meanNanos, long p50Nanos,
+            long p99Nanos, long p999Nanos, long maxNanos) {
+        this.count = count;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    static LatencyStats of(LatencyHistogram h) {
+        return new LatencyStats(h.getCount(), h.getMean(), h.getPercentile(50),
+                h.getPercentile(99), h.getPercentile(99.9), h.getMax());
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanNanos() {
+        return meanNanos;
+    }
+
+    public long getP50Nanos() {
+        return p50Nanos;
+    }
+
+    public long getP99Nanos() {
+        return p99Nanos;
+    }
+
+    public long getP999Nanos() {
+        return p999Nanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count + " mean=" + (long) meanNanos + "ns p50="
+                + p50Nanos + "ns p99=" + p99Nanos + "ns p999=" + p999Nanos
+                + "ns max=" + maxNanos + "ns";
+    }
+}
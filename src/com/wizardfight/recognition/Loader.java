@@ -6,11 +6,26 @@
 package com.wizardfight.recognition;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
+ * Loads GRT text models. Both the full GRT header (HMM_MODEL_FILE_V2.0) and
+ * the short form starting at UseNullRejection are accepted; header fields
+ * may come in any order and unknown fields are skipped. Matrix sizes are
+ * taken from the NumStates, NumSymbols and NumInputDimensions fields, or
+ * from the number of values when a field is missing.
  *
  * @author Konstantin
  */
@@ -33,179 +48,248 @@ public class Loader {
             return false;
         }
 
-        String word;
-        double value;
-
-        // Load if the number of clusters
-        word = reader.readLine();
-        if (!word.contains("UseNullRejection:")) {
-            System.err
-                    .println("loadBaseSettingsFromFile(fstream &file) - Failed to read UseNullRejection header!");
+        try {
+            if (!loadHMM(new GrtTokenizer(reader))) {
+                hmm.clear();
+                return false;
+            }
+            return true;
+        } finally {
             reader.close();
-            hmm.clear();
-            return false;
         }
-        String[] buf = word.split("\\s+");
-        hmm.useNullRejection = (Integer.parseInt(buf[1]) == 1);
+    }
 
-        // If the model is trained then load the model settings
-        // Load the number of classes
-        word = reader.readLine();
-        if (!word.contains("NumClasses:")) {
-            System.err
-                    .println("loadBaseSettingsFromFile(fstream &file) - Failed to read NumClasses header!");
-            hmm.clear();
-            reader.close();
-            return false;
+    private boolean loadHMM(GrtTokenizer tok) throws IOException {
+        hmm.numClasses = 0;
+        hmm.numStates = 0;
+        hmm.numSymbols = 0;
+        hmm.classLabels = null;
+        hmm.nullRejectionThresholds = null;
+
+        // Skip the optional file format tag
+        if (tok.advance() && !tok.isKey()) {
+            tok.advance();
         }
-        buf = word.split("\\s+");
-        hmm.numClasses = Integer.parseInt(buf[1]);
 
-        // Load the null rejection thresholds
-        word = reader.readLine();
-        if (!word.contains("NullRejectionThresholds:")) {
-            System.err
-                    .println("loadBaseSettingsFromFile(fstream &file) - Failed to read NullRejectionThresholds header!");
-            hmm.clear();
-            reader.close();
-            return false;
+        // Load the header up to the first model
+        while (tok.hasToken() && !tok.isKey("Model_ID")) {
+            if (!tok.isKey()) {
+                System.err.println("loadBaseSettingsFromFile(fstream &file) - Unexpected value "
+                        + tok.text() + "!");
+                return false;
+            }
+            String key = tok.text();
+            int n = tok.readValues();
+            if (n == 0 && !key.equals("NullRejectionThresholds:")
+                    && !key.equals("ClassLabels:")) {
+                System.err.println("loadBaseSettingsFromFile(fstream &file) - Failed to read "
+                        + key + " header!");
+                return false;
+            }
+            switch (key) {
+                case "Trained:":
+                    if (tok.intValue(0) != 1) {
+                        System.err.println("loadBaseSettingsFromFile(fstream &file) - The model is not trained!");
+                        return false;
+                    }
+                    break;
+                case "UseNullRejection:":
+                    hmm.useNullRejection = (tok.intValue(0) == 1);
+                    break;
+                case "NumClasses:":
+                    hmm.numClasses = tok.intValue(0);
+                    break;
+                case "NullRejectionThresholds:":
+                    hmm.nullRejectionThresholds = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        hmm.nullRejectionThresholds[i] = tok.value(i);
+                    }
+                    break;
+                case "ClassLabels:":
+                    hmm.classLabels = new int[n];
+                    for (int i = 0; i < n; i++) {
+                        hmm.classLabels[i] = tok.intValue(i);
+                    }
+                    break;
+                case "NumStates:":
+                    hmm.numStates = tok.intValue(0);
+                    break;
+                case "NumSymbols:":
+                    hmm.numSymbols = tok.intValue(0);
+                    break;
+                case "ModelType:":
+                    hmm.modelType = tok.intValue(0);
+                    break;
+                case "Delta:":
+                    hmm.delta = tok.intValue(0);
+                    break;
+                case "MinNumEpochs:":
+                    hmm.minNumEpochs = tok.intValue(0);
+                    break;
+                case "MaxNumEpochs:":
+                    hmm.maxNumEpochs = tok.intValue(0);
+                    break;
+                case "MinChange:":
+                    hmm.minChange = tok.value(0);
+                    break;
+                case "NumRandomTrainingIterations:":
+                    hmm.numRandomTrainingIterations = tok.intValue(0);
+                    break;
+                default:
+                    // Settings the recognizer does not use
+                    break;
+            }
         }
-        hmm.nullRejectionThresholds = new double[hmm.numClasses];
-        buf = word.split("\\s+");
-//            System.out.println(word);
-        for (int i = 0; i < hmm.nullRejectionThresholds.length; i++) {
 
-            hmm.nullRejectionThresholds[i] = Integer.parseInt(buf[i + 1]);
+        if (hmm.numClasses <= 0) {
+            System.err.println("loadBaseSettingsFromFile(fstream &file) - Failed to read NumClasses header!");
+            return false;
         }
-        // Load the class labels
-        word = reader.readLine();
-        if (!word.contains("ClassLabels:")) {
-            System.err
-                    .println("loadBaseSettingsFromFile(fstream &file) - Failed to read ClassLabels header!");
-            hmm.clear();
-            reader.close();
+        if (hmm.classLabels == null || hmm.classLabels.length != hmm.numClasses) {
+            System.err.println("loadBaseSettingsFromFile(fstream &file) - Failed to read ClassLabels header!");
             return false;
         }
-        hmm.classLabels = new int[hmm.numClasses];
-        buf = word.split("\\s+");
-        for (int i = 0; i < hmm.classLabels.length; i++) {
-            hmm.classLabels[i] = Integer.parseInt(buf[i + 1]);
+        if (hmm.nullRejectionThresholds == null) {
+            hmm.nullRejectionThresholds = new double[hmm.numClasses];
+        } else if (hmm.nullRejectionThresholds.length != hmm.numClasses) {
+            System.err.println("loadBaseSettingsFromFile(fstream &file) - Failed to read NullRejectionThresholds header!");
+            return false;
         }
 
-        // If the HMM has been trained then load the hmm.models
-        // Resize the buffer
-        hmm.models.ensureCapacity(hmm.numClasses);
-
         // Load each of the K classes
+        hmm.models.ensureCapacity(hmm.numClasses);
         for (int k = 0; k < hmm.numClasses; k++) {
-            int modelID;
-            word = reader.readLine();
-            if (!word.contains("Model_ID:")) {
+            if (!tok.isKey("Model_ID")) {
                 System.err
                         .println("loadModelFromFile( fstream &file ) - Could not find model ID for the "
                                 + (k + 1) + "th model");
-                reader.close();
                 return false;
             }
-            buf = word.split("\\s+");
-            modelID = Integer.parseInt(buf[1]);
-
-            if (modelID - 1 != k) {
+            if (tok.readValues() != 1 || tok.intValue(0) - 1 != k) {
                 System.err
                         .println("loadModelFromFile( fstream &file ) - Model ID does not match the current class ID for the "
                                 + (k + 1) + "th model");
-                reader.close();
-                return false;
-            }
-            word = reader.readLine();
-            if (!word.contains("NumStates:")) {
-                System.err
-                        .println("loadModelFromFile( fstream &file ) - Could not find the NumStates for the "
-                                + (k + 1) + "th model");
-                reader.close();
-                return false;
-            }
-            buf = word.split("\\s+");
-            hmm.models.add(k, new HiddenMarkovModel());
-            hmm.models.get(k).numStates = Integer.parseInt(buf[1]);
-
-            hmm.models.get(k).a = new double
-                    [ hmm.models.get(k).numStates ]
-                    [ hmm.models.get(k).numStates ];
-            hmm.models.get(k).pi = new double[hmm.models.get(k).numStates];
-
-            word = reader.readLine();
-            // Load the A, B and Pi matrices
-            if (!word.contains("A:")) {
-                System.err
-                        .println("loadModelFromFile( fstream &file ) - Could not find the A matrix for the "
-                                + (k + 1) + "th model.");
-                reader.close();
-                return false;
-            }
-
-            for (int i = 0; i < hmm.models.get(k).numStates; i++) {
-                word = reader.readLine();
-//                    System.out.println(word);
-                buf = word.split("\\s+");
-                for (int j = 0; j < hmm.models.get(k).numStates; j++) {
-                    value = Double.parseDouble(buf[j]);
-                    hmm.models.get(k).a[i][j] = value;
-                }
-            }
-            word = reader.readLine();
-            if (!word.contains("B:")) {
-                System.err
-                        .println("loadModelFromFile( fstream &file ) - Could not find the B matrix for the "
-                                + (k + 1) + "th model.");
-                reader.close();
                 return false;
             }
-
-            // Load B
-            // word = reader.readLine();
-            hmm.models.get(k).b = new double 
-                    [hmm.models.get(k).numStates][NUM_SYMBOLS];
-            for (int i = 0; i < hmm.models.get(k).numStates; i++) {
-                word = reader.readLine();
-                buf = word.split("\\s+");
-                for (int j = 0; j < NUM_SYMBOLS; j++) {
-                    value = Double.parseDouble(buf[j]);
-                    hmm.models.get(k).b[i][j] = value;
-                }
-            }
-
-            word = reader.readLine();
-            if (!word.contains("Pi:")) {
-                System.err
-                        .println("loadModelFromFile( fstream &file ) - Could not find the Pi matrix for the "
-                                + (k + 1) + "th model.");
-                reader.close();
+            HiddenMarkovModel model = loadModel(tok, k);
+            if (model == null) {
                 return false;
             }
-
-            // Load Pi
-            word = reader.readLine();
-            buf = word.split("\\s+");
-            for (int i = 0; i < hmm.models.get(k).numStates; i++) {
-                value = Double.parseDouble(buf[i]);
-                hmm.models.get(k).pi[i] = value;
-            }
+            hmm.models.add(model);
+        }
+        if (tok.hasToken()) {
+            System.err.println("loadModelFromFile( fstream &file ) - Unexpected "
+                    + tok.text() + " after the last model");
+            return false;
         }
 
         hmm.maxLikelihood = 0;
         hmm.bestDistance = 0;
         hmm.classLikelihoods = new double[hmm.numClasses];
         hmm.classDistances = new double[hmm.numClasses];
-        reader.close();
         return true;
     }
 
+    private HiddenMarkovModel loadModel(GrtTokenizer tok, int k)
+            throws IOException {
+        HiddenMarkovModel model = new HiddenMarkovModel();
+        model.numStates = hmm.numStates;
+        model.numSymbols = hmm.numSymbols;
+        model.modelType = hmm.modelType;
+        model.delta = hmm.delta;
+
+        while (tok.hasToken() && !tok.isKey("Model_ID")) {
+            if (!tok.isKey()) {
+                System.err.println("loadModelFromFile( fstream &file ) - Unexpected value "
+                        + tok.text() + " in the " + (k + 1) + "th model");
+                return null;
+            }
+            String key = tok.text();
+            int n = tok.readValues();
+            final int N = model.numStates;
+            switch (key) {
+                case "NumStates:":
+                    model.numStates = n > 0 ? tok.intValue(0) : 0;
+                    break;
+                case "NumSymbols:":
+                    model.numSymbols = n > 0 ? tok.intValue(0) : 0;
+                    break;
+                case "ModelType:":
+                    model.modelType = n > 0 ? tok.intValue(0) : model.modelType;
+                    break;
+                case "Delta:":
+                    model.delta = n > 0 ? tok.intValue(0) : model.delta;
+                    break;
+                case "Threshold:":
+                    model.threshold = n > 0 ? tok.value(0) : 0;
+                    break;
+                case "NumRandomTrainingIterations:":
+                    model.numRandomTrainingIterations = n > 0 ? tok.intValue(0)
+                            : model.numRandomTrainingIterations;
+                    break;
+                case "MaxNumIter:":
+                    model.maxNumIter = n > 0 ? tok.intValue(0) : model.maxNumIter;
+                    break;
+                case "A:":
+                    if (N <= 0 || n != N * N) {
+                        System.err
+                                .println("loadModelFromFile( fstream &file ) - Could not find the A matrix for the "
+                                        + (k + 1) + "th model.");
+                        return null;
+                    }
+                    model.a = new double[N][N];
+                    for (int i = 0; i < N; i++) {
+                        for (int j = 0; j < N; j++) {
+                            model.a[i][j] = tok.value(i * N + j);
+                        }
+                    }
+                    break;
+                case "B:":
+                    if (N > 0 && model.numSymbols <= 0 && n % N == 0) {
+                        model.numSymbols = n / N;
+                    }
+                    final int M = model.numSymbols;
+                    if (N <= 0 || M <= 0 || n != N * M) {
+                        System.err
+                                .println("loadModelFromFile( fstream &file ) - Could not find the B matrix for the "
+                                        + (k + 1) + "th model.");
+                        return null;
+                    }
+                    model.b = new double[N][M];
+                    for (int i = 0; i < N; i++) {
+                        for (int j = 0; j < M; j++) {
+                            model.b[i][j] = tok.value(i * M + j);
+                        }
+                    }
+                    break;
+                case "Pi:":
+                    if (N <= 0 || n != N) {
+                        System.err
+                                .println("loadModelFromFile( fstream &file ) - Could not find the Pi matrix for the "
+                                        + (k + 1) + "th model.");
+                        return null;
+                    }
+                    model.pi = new double[N];
+                    for (int i = 0; i < N; i++) {
+                        model.pi[i] = tok.value(i);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (model.a == null || model.b == null || model.pi == null) {
+            System.err.println("loadModelFromFile( fstream &file ) - The "
+                    + (k + 1) + "th model is missing its A, B or Pi matrix.");
+            return null;
+        }
+        return model;
+    }
+
     public boolean loadQuantizerFromFile(String file) throws IOException {
 
-        quantizer.numClusters = 0;
-        quantizer.clusters = null;
-        quantizer.quantizationDistances.clear();
+        quantizer.setClusters(null);
 
         BufferedReader reader;
 
@@ -217,38 +301,120 @@ public class Loader {
             return false;
         }
 
-        String word;
-        quantizer.numInputDimensions = 3;
-
-        word = reader.readLine();
-        if (!word.contains("NumClusters:")) {
-            System.err
-                    .println("loadModelFromFile(fstream &file) - Failed to load NumClusters!");
+        try {
+            return loadQuantizer(new GrtTokenizer(reader));
+        } finally {
             reader.close();
-            return false;
         }
-        quantizer.numClusters = Integer.parseInt(word.split("\\s+")[1]);
+    }
+
+    private boolean loadQuantizer(GrtTokenizer tok) throws IOException {
+        int numClusters = 0;
+        int numInputDimensions = 0;
+
+        // Skip the optional file format tag
+        if (tok.advance() && !tok.isKey()) {
+            tok.advance();
+        }
 
-        quantizer.clusters = new double[quantizer.numClusters][quantizer.numInputDimensions];
-        word = reader.readLine();
-        if (!word.contains("Clusters:")) {
+        while (tok.hasToken()) {
+            if (!tok.isKey()) {
+                System.err.println("loadModelFromFile(fstream &file) - Unexpected value "
+                        + tok.text() + "!");
+                return false;
+            }
+            String key = tok.text();
+            int n = tok.readValues();
+            switch (key) {
+                case "QuantizerTrained:":
+                    if (n == 0 || tok.intValue(0) != 1) {
+                        System.err.println("loadModelFromFile(fstream &file) - The quantizer is not trained!");
+                        return false;
+                    }
+                    break;
+                case "NumClusters:":
+                    numClusters = n > 0 ? tok.intValue(0) : 0;
+                    break;
+                case "NumInputDimensions:":
+                    numInputDimensions = n > 0 ? tok.intValue(0) : 0;
+                    break;
+                case "Clusters:":
+                    if (numClusters <= 0) {
+                        System.err
+                                .println("loadModelFromFile(fstream &file) - Failed to load NumClusters!");
+                        return false;
+                    }
+                    if (numInputDimensions <= 0 && n % numClusters == 0) {
+                        numInputDimensions = n / numClusters;
+                    }
+                    if (numInputDimensions <= 0 || n != numClusters * numInputDimensions) {
+                        System.err
+                                .println("loadModelFromFile(fstream &file) - Failed to load Clusters!");
+                        return false;
+                    }
+                    double[][] clusters = new double[numClusters][numInputDimensions];
+                    for (int k = 0; k < numClusters; k++) {
+                        for (int j = 0; j < numInputDimensions; j++) {
+                            clusters[k][j] = tok.value(k * numInputDimensions + j);
+                        }
+                    }
+                    quantizer.setClusters(clusters);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (quantizer.clusters == null) {
             System.err
                     .println("loadModelFromFile(fstream &file) - Failed to load Clusters!");
-            reader.close();
             return false;
         }
+        return true;
+    }
 
-        String[] buf;
-        for (int k = 0; k < quantizer.numClusters; k++) {
-            word = reader.readLine();
-            buf = word.split("\\s+");
-            for (int j = 0; j < quantizer.numInputDimensions; j++) {
-                quantizer.clusters[k][j] = Double.parseDouble(buf[j]);
+    /**
+     * Loads many GRT model files at once, one file per task.
+     *
+     * @param List<File> files: the model files to load
+     * @param int numThreads: the number of files loaded at the same time
+     * @return the models that loaded, keyed by file, in the order of files.
+     * Files that fail to load are reported on stderr and left out.
+     */
+    public static Map<File, HMM> loadHMMCatalog(List<File> files,
+            int numThreads) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            List<Future<HMM>> futures = new ArrayList<Future<HMM>>(files.size());
+            for (final File file : files) {
+                futures.add(pool.submit(new Callable<HMM>() {
+                    @Override
+                    public HMM call() throws IOException {
+                        Loader loader = new Loader();
+                        return loader.loadHMMFromFile(file.getPath())
+                                ? loader.hmm : null;
+                    }
+                }));
             }
+
+            Map<File, HMM> catalog = new LinkedHashMap<File, HMM>();
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    HMM model = futures.get(i).get();
+                    if (model != null) {
+                        catalog.put(files.get(i), model);
+                    } else {
+                        System.err.println("ERROR: Failed to load hmm "
+                                + files.get(i));
+                    }
+                } catch (ExecutionException ex) {
+                    System.err.println("ERROR: Failed to load hmm "
+                            + files.get(i) + "! " + ex.getCause());
+                }
+            }
+            return catalog;
+        } finally {
+            pool.shutdownNow();
         }
-        
-        quantizer.quantizationDistances.ensureCapacity(quantizer.numClusters);
-        reader.close();
-        return true;
     }
 }
@@ -0,0 +1,159 @@
+package com.wizardfight.recognition;
+
+/**
+ * This class holds the log probabilities of a HiddenMarkovModel in flat
+ * arrays, so that Viterbi style recursions only add and compare. Zero
+ * probabilities become Double.NEGATIVE_INFINITY.
+ *
+ * Instances are immutable; engines build them once when they are compiled.
+ */
+final class LogModel {
+
+    final int numStates;
+    final int numSymbols;
+    final double[] logPi; // logPi[i]
+    final double[] logA; // logA[i * numStates + j]: transition i -> j
+    final double[] logB; // logB[i * numSymbols + k]: state i emits symbol k
+    // States a gesture may end in: the last state of a left-right model,
+    // every state otherwise
+    final int[] endStates;
+
+    LogModel(HiddenMarkovModel model) {
+        numStates = model.numStates;
+        numSymbols = model.b[0].length;
+        logPi = new double[numStates];
+        logA = new double[numStates * numStates];
+        logB = new double[numStates * numSymbols];
+        boolean leftRight = true;
+        for (int i = 0; i < numStates; i++) {
+            logPi[i] = Math.log(model.pi[i]);
+            for (int j = 0; j < numStates; j++) {
+                logA[i * numStates + j] = Math.log(model.a[i][j]);
+                if (j < i && model.a[i][j] > 0) {
+                    leftRight = false;
+                }
+            }
+            for (int k = 0; k < numSymbols; k++) {
+                logB[i * numSymbols + k] = Math.log(model.b[i][k]);
+            }
+        }
+        if (leftRight) {
+            endStates = new int[] { numStates - 1 };
+        } else {
+            endStates = new int[numStates];
+            for (int i = 0; i < numStates; i++) {
+                endStates[i] = i;
+            }
+        }
+    }
+
+    // Two rolling rows and the back pointers per thread, grown on demand
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final class Scratch {
+        double[] prev = new double[0];
+        double[] next = new double[0];
+        int[] psi = new int[0];
+    }
+
+    /**
+     * Computes the log probability of the best state path of obs with the
+     * Viterbi algorithm.
+     *
+     * @param int[] obs: the observation sequence, must not be empty
+     * @return the log probability of the best path, comparable to
+     * HiddenMarkovModel.predict, or Double.NEGATIVE_INFINITY if no path can
+     * produce obs
+     */
+    double viterbi(int[] obs) {
+        return viterbi(obs, 0, obs.length, null);
+    }
+
+    /**
+     * Scores obs[offset, offset+length) using the calling thread's scratch
+     * rows.
+     *
+     * @param int[] path: if not null, receives the best state path, must hold
+     * at least length values
+     */
+    double viterbi(int[] obs, int offset, int length, int[] path) {
+        Scratch s = scratch.get();
+        if (s.prev.length < numStates) {
+            s.prev = new double[numStates];
+            s.next = new double[numStates];
+        }
+        int[] psi = null;
+        if (path != null) {
+            if (s.psi.length < length * numStates) {
+                s.psi = new int[length * numStates];
+            }
+            psi = s.psi;
+        }
+        return viterbi(obs, offset, length, s.prev, s.next, psi, path);
+    }
+
+    /**
+     * Scores obs[offset, offset+length) using caller owned scratch.
+     *
+     * @param double[] prev, next: scratch rows of at least numStates values
+     * @param int[] psi: back pointers of at least length * numStates values,
+     * only used if path is not null
+     * @param int[] path: if not null, receives the best state path
+     */
+    double viterbi(int[] obs, int offset, int length, double[] prev,
+            double[] next, int[] psi, int[] path) {
+        final int N = numStates;
+        final int M = numSymbols;
+        final double[] logA = this.logA;
+        final double[] logB = this.logB;
+
+        int o = obs[offset];
+        for (int i = 0; i < N; i++) {
+            prev[i] = logPi[i] + logB[i * M + o];
+        }
+        for (int t = 1; t < length; t++) {
+            o = obs[offset + t];
+            for (int j = 0; j < N; j++) {
+                double best = Double.NEGATIVE_INFINITY;
+                int from = 0;
+                for (int i = 0; i < N; i++) {
+                    double v = prev[i] + logA[i * N + j];
+                    if (v > best) {
+                        best = v;
+                        from = i;
+                    }
+                }
+                next[j] = best + logB[j * M + o];
+                if (path != null) {
+                    psi[t * N + j] = from;
+                }
+            }
+            double[] tmp = prev;
+            prev = next;
+            next = tmp;
+        }
+
+        double best = Double.NEGATIVE_INFINITY;
+        int state = 0;
+        for (int i = 0; i < N; i++) {
+            if (prev[i] > best) {
+                best = prev[i];
+                state = i;
+            }
+        }
+        if (path != null) {
+            // Backtrack from the best final state
+            path[length - 1] = state;
+            for (int t = length - 1; t > 0; t--) {
+                state = psi[t * N + state];
+                path[t - 1] = state;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,245 @@
+package com.wizardfight.recognition;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps many models (for example one per player or device class)
+ * in memory up to a byte budget, evicting the least recently used ones. Size
+ * is counted from the matrices of each model, see
+ * RecognitionEngine.getSizeInBytes.
+ *
+ * A missing model is loaded once even if many threads ask for it at the
+ * same time: the first caller runs the loader and the others wait for its
+ * result.
+ */
+public final class ModelCache {
+
+    /**
+     * Loads the model with the given ID when it is not in the cache.
+     */
+    public interface ModelLoader {
+
+        RecognitionEngine load(String modelId) throws IOException;
+    }
+
+    private final ModelLoader loader;
+    private final long maxBytes;
+
+    // Guarded by itself, in access order
+    private final LinkedHashMap<String, RecognitionEngine> models = new LinkedHashMap<String, RecognitionEngine>(16, 0.75f, true);
+    private long currentBytes = 0;
+
+    private final ConcurrentHashMap<String, FutureTask<RecognitionEngine>> loading = new ConcurrentHashMap<String, FutureTask<RecognitionEngine>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param ModelLoader loader: called to load a model that is not cached
+     * @param long maxBytes: the largest total size of the cached models
+     */
+    public ModelCache(ModelLoader loader, long maxBytes) {
+        this.loader = loader;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the model with the given ID, loading it if it is not cached.
+     *
+     * @throws IOException if the loader fails
+     */
+    public RecognitionEngine get(final String modelId) throws IOException {
+        synchronized (models) {
+            RecognitionEngine engine = models.get(modelId);
+            if (engine != null) {
+                hits.incrementAndGet();
+                return engine;
+            }
+        }
+        misses.incrementAndGet();
+
+        FutureTask<RecognitionEngine> task = loading.get(modelId);
+        if (task == null) {
+            FutureTask<RecognitionEngine> newTask = new FutureTask<RecognitionEngine>(
+                    new Callable<RecognitionEngine>() {
+                        @Override
+                        public RecognitionEngine call() throws IOException {
+                            // Another thread may have finished loading it
+                            RecognitionEngine engine = getIfPresent(modelId);
+                            if (engine != null) {
+                                return engine;
+                            }
+                            loads.incrementAndGet();
+                            return loader.load(modelId);
+                        }
+                    });
+            task = loading.putIfAbsent(modelId, newTask);
+            if (task == null) {
+                task = newTask;
+                try {
+                    newTask.run();
+                    RecognitionEngine engine = newTask.get();
+                    synchronized (models) {
+                        // Unless invalidate dropped the load while it ran
+                        if (loading.remove(modelId, newTask)) {
+                            put(modelId, engine);
+                        }
+                    }
+                } catch (ExecutionException ex) {
+                    loadFailures.incrementAndGet();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    loading.remove(modelId, newTask);
+                }
+            }
+        }
+
+        try {
+            RecognitionEngine engine = task.get();
+            if (engine == null) {
+                throw new IOException("The loader returned no model for " + modelId);
+            }
+            return engine;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Failed to load model " + modelId, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading model " + modelId, ex);
+        }
+    }
+
+    /**
+     * @return the cached model, or null if it is not cached. Does not count
+     * as a hit or a miss.
+     */
+    public RecognitionEngine getIfPresent(String modelId) {
+        synchronized (models) {
+            return models.get(modelId);
+        }
+    }
+
+    /**
+     * Adds or replaces a model, evicting others if the cache is over budget.
+     */
+    public void put(String modelId, RecognitionEngine engine) {
+        if (engine == null) {
+            return;
+        }
+        synchronized (models) {
+            RecognitionEngine old = models.put(modelId, engine);
+            if (old != null) {
+                currentBytes -= old.getSizeInBytes();
+            }
+            currentBytes += engine.getSizeInBytes();
+            evict(modelId);
+        }
+    }
+
+    /**
+     * Removes a model, for example after its file changed. A load of the
+     * model that is still running is dropped as well: its callers get its
+     * result, but it is not cached, and the next get loads the model again.
+     */
+    public void invalidate(String modelId) {
+        synchronized (models) {
+            loading.remove(modelId);
+            RecognitionEngine old = models.remove(modelId);
+            if (old != null) {
+                currentBytes -= old.getSizeInBytes();
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (models) {
+            models.clear();
+            currentBytes = 0;
+        }
+    }
+
+    // Removes the least recently used models, never the one just added
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, RecognitionEngine>> it = models.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, RecognitionEngine> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            currentBytes -= eldest.getValue().getSizeInBytes();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public int size() {
+        synchronized (models) {
+            return models.size();
+        }
+    }
+
+    public long getSizeInBytes() {
+        synchronized (models) {
+            return currentBytes;
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of times the loader was run
+     */
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    public long getLoadFailureCount() {
+        return loadFailures.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the share of get calls served from the cache, 0 if there were
+     * none
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ModelCache[models=" + size() + ", bytes=" + getSizeInBytes()
+                + "/" + maxBytes + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + ", loads=" + getLoadCount() + ", evictions=" + getEvictionCount()
+                + ", loadFailures=" + getLoadFailureCount() + "]";
+    }
+}
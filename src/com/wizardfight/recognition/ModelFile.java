@@ -0,0 +1,289 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class reads and writes the binary model format, which holds a
+ * quantizer codebook and all the class models of an HMM in one file.
+ *
+ * All values are little endian and every double starts on an 8 byte
+ * boundary. The file starts with a 32 byte header:
+ *
+ * int magic ("WFHM"), int version, int flags (bit 0: UseNullRejection),
+ * int reserved, long payloadLength, long checksum
+ *
+ * followed by the payload:
+ *
+ * int numClusters, int numDimensions, int numClasses, int reserved,
+ * double clusters[numClusters][numDimensions], and for each class:
+ * int classLabel, int numStates, int numSymbols, int reserved,
+ * double nullRejectionThreshold, double pi[numStates],
+ * double a[numStates][numStates], double b[numStates][numSymbols]
+ *
+ * The checksum is a 64 bit FNV-1a hash over the payload read as longs.
+ * Files are loaded through a read only memory mapping; matrices are bulk
+ * read from the mapped buffer without any parsing.
+ */
+public final class ModelFile {
+
+    public static final int MAGIC = 0x4D484657; // "WFHM" read little endian
+    public static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final KMeansQuantizer quantizer;
+    private final HMM hmm;
+
+    public ModelFile(KMeansQuantizer quantizer, HMM hmm) {
+        this.quantizer = quantizer;
+        this.hmm = hmm;
+    }
+
+    public KMeansQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    public HMM getHMM() {
+        return hmm;
+    }
+
+    /**
+     * @throws IOException if the quantizer and the class models disagree on
+     * the number of symbols
+     */
+    public RecognitionEngine compile() throws IOException {
+        try {
+            return RecognitionEngine.compile(quantizer, hmm);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Invalid model: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes the quantizer and the HMM to a binary model file.
+     */
+    public void write(File file) throws IOException {
+        int payloadLength = 16 + quantizer.numClusters
+                * quantizer.numInputDimensions * 8;
+        for (int k = 0; k < hmm.numClasses; k++) {
+            HiddenMarkovModel model = hmm.models.get(k);
+            int n = model.numStates;
+            payloadLength += 24 + (n + n * n + n * model.b[0].length) * 8;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + payloadLength)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buf.position(HEADER_SIZE);
+        buf.putInt(quantizer.numClusters);
+        buf.putInt(quantizer.numInputDimensions);
+        buf.putInt(hmm.numClasses);
+        buf.putInt(0);
+        for (int k = 0; k < quantizer.numClusters; k++) {
+            for (int d = 0; d < quantizer.numInputDimensions; d++) {
+                buf.putDouble(quantizer.clusters[k][d]);
+            }
+        }
+        for (int k = 0; k < hmm.numClasses; k++) {
+            HiddenMarkovModel model = hmm.models.get(k);
+            int numSymbols = model.b[0].length;
+            buf.putInt(hmm.classLabels[k]);
+            buf.putInt(model.numStates);
+            buf.putInt(numSymbols);
+            buf.putInt(0);
+            buf.putDouble(hmm.nullRejectionThresholds == null ? 0
+                    : hmm.nullRejectionThresholds[k]);
+            for (int i = 0; i < model.numStates; i++) {
+                buf.putDouble(model.pi[i]);
+            }
+            for (int i = 0; i < model.numStates; i++) {
+                for (int j = 0; j < model.numStates; j++) {
+                    buf.putDouble(model.a[i][j]);
+                }
+            }
+            for (int i = 0; i < model.numStates; i++) {
+                for (int j = 0; j < numSymbols; j++) {
+                    buf.putDouble(model.b[i][j]);
+                }
+            }
+        }
+
+        buf.position(HEADER_SIZE);
+        long checksum = checksum(buf.slice().order(ByteOrder.LITTLE_ENDIAN));
+        buf.position(0);
+        buf.putInt(MAGIC);
+        buf.putInt(VERSION);
+        buf.putInt(hmm.useNullRejection ? 1 : 0);
+        buf.putInt(0);
+        buf.putLong(payloadLength);
+        buf.putLong(checksum);
+        buf.position(0);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Maps a binary model file and reads the quantizer and the HMM from it.
+     *
+     * @throws IOException if the file cannot be read, is not a model file,
+     * has an unsupported version or fails the checksum
+     */
+    public static ModelFile read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer mapped;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + " is too short to be a model file");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close(); // The mapping stays valid after the channel closes
+        }
+        return read(mapped, file.toString());
+    }
+
+    static ModelFile read(ByteBuffer buf, String name) throws IOException {
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        if (buf.getInt(0) != MAGIC) {
+            throw new IOException(name + " is not a binary model file");
+        }
+        int version = buf.getInt(4);
+        if (version != VERSION) {
+            throw new IOException(name + " has unsupported version " + version);
+        }
+        boolean useNullRejection = (buf.getInt(8) & 1) != 0;
+        long payloadLength = buf.getLong(16);
+        if (payloadLength < 16 || payloadLength % 8 != 0
+                || HEADER_SIZE + payloadLength != buf.limit()) {
+            throw new IOException(name + " is truncated or has a bad length");
+        }
+        buf.position(HEADER_SIZE);
+        ByteBuffer payload = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (checksum(payload) != buf.getLong(24)) {
+            throw new IOException(name + " failed the checksum");
+        }
+
+        try {
+            int numClusters = payload.getInt(0);
+            int numDimensions = payload.getInt(4);
+            int numClasses = payload.getInt(8);
+            int pos = 16;
+
+            double[][] clusters = new double[numClusters][numDimensions];
+            DoubleBuffer values = doubles(payload, pos);
+            for (int k = 0; k < numClusters; k++) {
+                values.get(clusters[k]);
+            }
+            pos += numClusters * numDimensions * 8;
+            KMeansQuantizer quantizer = new KMeansQuantizer(numClusters);
+            quantizer.setClusters(clusters);
+            quantizer.numInputDimensions = numDimensions;
+
+            HMM hmm = new HMM();
+            hmm.useNullRejection = useNullRejection;
+            hmm.numClasses = numClasses;
+            hmm.classLabels = new int[numClasses];
+            hmm.nullRejectionThresholds = new double[numClasses];
+            hmm.classLikelihoods = new double[numClasses];
+            hmm.classDistances = new double[numClasses];
+            for (int k = 0; k < numClasses; k++) {
+                hmm.classLabels[k] = payload.getInt(pos);
+                int numStates = payload.getInt(pos + 4);
+                int numSymbols = payload.getInt(pos + 8);
+                pos += 16;
+
+                values = doubles(payload, pos);
+                hmm.nullRejectionThresholds[k] = values.get();
+                HiddenMarkovModel model = new HiddenMarkovModel();
+                model.numStates = numStates;
+                model.numSymbols = numSymbols;
+                model.pi = new double[numStates];
+                values.get(model.pi);
+                model.a = new double[numStates][numStates];
+                for (int i = 0; i < numStates; i++) {
+                    values.get(model.a[i]);
+                }
+                model.b = new double[numStates][numSymbols];
+                for (int i = 0; i < numStates; i++) {
+                    values.get(model.b[i]);
+                }
+                hmm.models.add(model);
+                pos += (1 + numStates + numStates * numStates
+                        + numStates * numSymbols) * 8;
+            }
+            if (pos != payload.limit()) {
+                throw new IOException(name + " has " + (payload.limit() - pos)
+                        + " unexpected trailing bytes");
+            }
+            return new ModelFile(quantizer, hmm);
+        } catch (RuntimeException ex) {
+            // Index and underflow errors mean the sizes in the file are wrong
+            throw new IOException(name + " is corrupt: " + ex, ex);
+        }
+    }
+
+    private static DoubleBuffer doubles(ByteBuffer payload, int pos) {
+        ByteBuffer view = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        view.position(pos);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    private static long checksum(ByteBuffer payload) {
+        LongBuffer words = payload.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                .asLongBuffer();
+        long hash = FNV_OFFSET;
+        while (words.hasRemaining()) {
+            hash ^= words.get();
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Converts an existing model to the binary format.
+     *
+     * Usage: ModelFile -ser quantizer.ser model.ser out.wfm
+     * or: ModelFile -txt quantizer.txt model.txt out.wfm
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4
+                || !(args[0].equals("-ser") || args[0].equals("-txt"))) {
+            System.err.println("Usage: ModelFile (-ser | -txt) quantizer model out.wfm");
+            System.exit(2);
+        }
+        KMeansQuantizer quantizer;
+        HMM hmm;
+        if (args[0].equals("-ser")) {
+            quantizer = (KMeansQuantizer) Recognizer.readObject(new File(args[1]));
+            hmm = (HMM) Recognizer.readObject(new File(args[2]));
+        } else {
+            quantizer = Recognizer.getQuantizerFromFile(args[1]);
+            hmm = Recognizer.getHMMFromFile(args[2]);
+        }
+        if (quantizer == null || hmm == null) {
+            System.exit(1);
+        }
+        new ModelFile(quantizer, hmm).write(new File(args[3]));
+        // Read the file back so a broken conversion is noticed at once
+        read(new File(args[3]));
+        System.out.println("Wrote " + args[3]);
+    }
+}
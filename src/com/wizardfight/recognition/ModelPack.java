@@ -0,0 +1,385 @@
+package com.wizardfight.recognition;
+
+import java.util.List;
+
+/**
+ * This class packs the parameters of all the class models of an HMM into
+ * one flat array, so that scoring a sequence against every class walks a
+ * single contiguous block instead of jagged rows spread over the heap.
+ *
+ * The block of class k starts at offsets[k]. With N = numStates[k] and
+ * M = numSymbols it holds, in order:
+ *
+ * pi[N], aT[N*N] with aT[j*N+i] = a[i][j], b[M*N] with b[o*N+j] = b[j][o],
+ * then the same three tables again as natural logs
+ *
+ * A forward or Viterbi step for state j then reads row j of aT and one
+ * value of column o of b, all adjacent in memory. The kernels do the same
+ * arithmetic in the same order as HiddenMarkovModel.predict and
+ * LogModel.viterbi, so the scores are identical.
+ *
+ * Instances are immutable; engines build them once when they are compiled.
+ */
+final class ModelPack {
+
+    final int numClasses;
+    final int numSymbols;
+    final int maxStates;
+    final int[] numStates;
+    final int[] offsets; // Start of each class block in data
+    final int[] logOffsets; // Start of each class's log tables in data
+    final double[] data;
+    // Forward multiply-adds per timestep over all classes
+    final long stepWork;
+    // The models the pack was built from, to tell whether it is stale
+    private final HiddenMarkovModel[] source;
+    // The run-length operators, built on first use
+    private volatile SymbolOperators operators;
+
+    // Two rolling rows per thread, grown on demand
+    private static final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            return new double[2][0];
+        }
+    };
+
+    // Viterbi back pointers per thread, grown on demand
+    private static final ThreadLocal<int[][]> pathScratch = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            return new int[1][0];
+        }
+    };
+
+    /**
+     * @param HiddenMarkovModel[] models: the class models, which must all
+     * have the same number of symbols
+     */
+    ModelPack(HiddenMarkovModel[] models) {
+        numClasses = models.length;
+        numSymbols = numClasses == 0 ? 0 : models[0].b[0].length;
+        numStates = new int[numClasses];
+        offsets = new int[numClasses];
+        logOffsets = new int[numClasses];
+        source = models.clone();
+
+        int size = 0;
+        int max = 0;
+        long work = 0;
+        for (int k = 0; k < numClasses; k++) {
+            int N = models[k].numStates;
+            if (models[k].b[0].length != numSymbols) {
+                throw new IllegalArgumentException("Model " + (k + 1) + " has "
+                        + models[k].b[0].length + " symbols, expected " + numSymbols);
+            }
+            numStates[k] = N;
+            offsets[k] = size;
+            logOffsets[k] = size + tableSize(N);
+            size += 2 * tableSize(N);
+            max = Math.max(max, N);
+            work += (long) N * N;
+        }
+        maxStates = max;
+        stepWork = work;
+
+        data = new double[size];
+        for (int k = 0; k < numClasses; k++) {
+            HiddenMarkovModel model = models[k];
+            int N = numStates[k];
+            int base = offsets[k];
+            int logBase = logOffsets[k];
+            for (int i = 0; i < N; i++) {
+                data[base + i] = model.pi[i];
+                data[logBase + i] = Math.log(model.pi[i]);
+            }
+            for (int i = 0; i < N; i++) {
+                for (int j = 0; j < N; j++) {
+                    int p = N + j * N + i;
+                    data[base + p] = model.a[i][j];
+                    data[logBase + p] = Math.log(model.a[i][j]);
+                }
+            }
+            for (int j = 0; j < N; j++) {
+                for (int o = 0; o < numSymbols; o++) {
+                    int p = N + N * N + o * N + j;
+                    data[base + p] = model.b[j][o];
+                    data[logBase + p] = Math.log(model.b[j][o]);
+                }
+            }
+        }
+    }
+
+    private int tableSize(int N) {
+        return N + N * N + numSymbols * N;
+    }
+
+    /**
+     * @return true if this pack was built from exactly these model objects
+     */
+    boolean isPackOf(List<HiddenMarkovModel> models) {
+        if (models.size() != source.length) {
+            return false;
+        }
+        for (int k = 0; k < source.length; k++) {
+            if (models.get(k) != source[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes taken by the packed tables, not counting
+     * the run-length operators
+     */
+    long getSizeInBytes() {
+        return (long) data.length * 8
+                + (numStates.length + offsets.length + logOffsets.length) * 4;
+    }
+
+    /**
+     * @return the operators for RUN_LENGTH scoring, built on the first call
+     */
+    SymbolOperators getOperators() {
+        SymbolOperators ops = operators;
+        if (ops == null) {
+            ops = new SymbolOperators(this);
+            operators = ops;
+        }
+        return ops;
+    }
+
+    /**
+     * Scores obs under class k with the calling thread's scratch rows.
+     *
+     * @param int[] obs: the observation sequence, must not be empty
+     * @return the log likelihood of obs in FORWARD and RUN_LENGTH mode, or
+     * the log probability of its best state path in VITERBI mode
+     */
+    double score(int k, ScoringMode mode, int[] obs) {
+        double[][] rows = scratch.get();
+        if (rows[0].length < maxStates) {
+            rows[0] = new double[maxStates];
+            rows[1] = new double[maxStates];
+        }
+        switch (mode) {
+            case VITERBI:
+                return viterbi(k, obs, 0, obs.length, rows[0], rows[1]);
+            case RUN_LENGTH:
+                return getOperators().forward(k, obs, 0, obs.length, rows[0],
+                        rows[1]);
+            default:
+                return forward(k, obs, 0, obs.length, rows[0], rows[1]);
+        }
+    }
+
+    /**
+     * Computes the log likelihood of obs[offset, offset+length) under class k
+     * with the scaled forward algorithm.
+     *
+     * @param double[] prev, next: scratch rows of at least numStates[k] values
+     */
+    double forward(int k, int[] obs, int offset, int length, double[] prev,
+            double[] next) {
+        double loglikelihood = Math.log(forwardInit(k, obs[offset], prev));
+        for (int t = 1; t < length; t++) {
+            loglikelihood += Math.log(forwardStep(k, prev, next, obs[offset + t]));
+            double[] tmp = prev;
+            prev = next;
+            next = tmp;
+        }
+        return -loglikelihood;
+    }
+
+    /**
+     * Runs the first step (t=0) of the scaled forward algorithm for class k.
+     *
+     * @param double[] alpha: receives the scaled forward variables
+     * @return the scaling coefficient c[0]
+     */
+    double forwardInit(int k, int o, double[] alpha) {
+        final double[] data = this.data;
+        final int N = numStates[k];
+        final int pi = offsets[k];
+        final int b = pi + N + N * N + o * N;
+        double c = 0.0;
+        for (int i = 0; i < N; i++) {
+            double val = data[pi + i] * data[b + i];
+            alpha[i] = val;
+            c += val;
+        }
+
+        c = 1.0 / c;
+        for (int i = 0; i < N; i++) {
+            alpha[i] *= c;
+        }
+        return c;
+    }
+
+    /**
+     * Advances the scaled forward algorithm of class k by one observation.
+     *
+     * @param double[] next: receives the scaled forward variables at t, must
+     * not be the same array as prev
+     * @return the scaling coefficient c[t]
+     */
+    double forwardStep(int k, double[] prev, double[] next, int o) {
+        final double[] data = this.data;
+        final int N = numStates[k];
+        final int aT = offsets[k] + N;
+        final int b = aT + N * N + o * N;
+        double c = 0.0;
+        for (int j = 0; j < N; j++) {
+            final int row = aT + j * N;
+            double val = 0.0;
+            for (int i = 0; i < N; i++) {
+                val += prev[i] * data[row + i];
+            }
+            val *= data[b + j];
+            next[j] = val;
+            c += val;
+        }
+
+        c = 1.0 / c;
+        for (int j = 0; j < N; j++) {
+            next[j] *= c;
+        }
+        return c;
+    }
+
+    /**
+     * Computes the log probability of the best state path of
+     * obs[offset, offset+length) under class k.
+     *
+     * @param double[] prev, next: scratch rows of at least numStates[k] values
+     */
+    double viterbi(int k, int[] obs, int offset, int length, double[] prev,
+            double[] next) {
+        double best = viterbiInit(k, obs[offset], prev);
+        for (int t = 1; t < length; t++) {
+            best = viterbiStep(k, prev, next, obs[offset + t]);
+            double[] tmp = prev;
+            prev = next;
+            next = tmp;
+        }
+        return best;
+    }
+
+    /**
+     * Finds the best state path of obs[offset, offset+length) under class k
+     * with the calling thread's scratch. Ties go to the lowest state, as in
+     * LogModel.viterbi, so the paths are the same.
+     *
+     * @param int[] path: receives the best state path, must hold at least
+     * length values
+     * @return the log probability of the best path
+     */
+    double viterbiPath(int k, int[] obs, int offset, int length, int[] path) {
+        final double[] data = this.data;
+        final int N = numStates[k];
+        final int logAT = logOffsets[k] + N;
+        final int logB = logAT + N * N;
+        double[][] rows = scratch.get();
+        if (rows[0].length < maxStates) {
+            rows[0] = new double[maxStates];
+            rows[1] = new double[maxStates];
+        }
+        int[][] psiHolder = pathScratch.get();
+        if (psiHolder[0].length < length * N) {
+            psiHolder[0] = new int[length * N];
+        }
+        final int[] psi = psiHolder[0];
+        double[] prev = rows[0];
+        double[] next = rows[1];
+
+        viterbiInit(k, obs[offset], prev);
+        for (int t = 1; t < length; t++) {
+            final int b = logB + obs[offset + t] * N;
+            for (int j = 0; j < N; j++) {
+                final int row = logAT + j * N;
+                double best = Double.NEGATIVE_INFINITY;
+                int from = 0;
+                for (int i = 0; i < N; i++) {
+                    double v = prev[i] + data[row + i];
+                    if (v > best) {
+                        best = v;
+                        from = i;
+                    }
+                }
+                next[j] = best + data[b + j];
+                psi[t * N + j] = from;
+            }
+            double[] tmp = prev;
+            prev = next;
+            next = tmp;
+        }
+
+        double best = Double.NEGATIVE_INFINITY;
+        int state = 0;
+        for (int i = 0; i < N; i++) {
+            if (prev[i] > best) {
+                best = prev[i];
+                state = i;
+            }
+        }
+        // Backtrack from the best final state
+        path[length - 1] = state;
+        for (int t = length - 1; t > 0; t--) {
+            state = psi[t * N + state];
+            path[t - 1] = state;
+        }
+        return best;
+    }
+
+    /**
+     * Runs the first step (t=0) of the Viterbi algorithm for class k.
+     *
+     * @param double[] delta: receives the best path score of each state
+     * @return the best path score over all states
+     */
+    double viterbiInit(int k, int o, double[] delta) {
+        final double[] data = this.data;
+        final int N = numStates[k];
+        final int logPi = logOffsets[k];
+        final int logB = logPi + N + N * N + o * N;
+        double best = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < N; i++) {
+            delta[i] = data[logPi + i] + data[logB + i];
+            if (delta[i] > best) {
+                best = delta[i];
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Advances the Viterbi algorithm of class k by one observation.
+     *
+     * @param double[] next: receives the best path scores at t, must not be
+     * the same array as prev
+     * @return the best path score over all states at t
+     */
+    double viterbiStep(int k, double[] prev, double[] next, int o) {
+        final double[] data = this.data;
+        final int N = numStates[k];
+        final int logAT = logOffsets[k] + N;
+        final int logB = logAT + N * N + o * N;
+        double bestState = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < N; j++) {
+            final int row = logAT + j * N;
+            double best = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < N; i++) {
+                double v = prev[i] + data[row + i];
+                if (v > best) {
+                    best = v;
+                }
+            }
+            next[j] = best + data[logB + j];
+            if (next[j] > bestState) {
+                bestState = next[j];
+            }
+        }
+        return bestState;
+    }
+}
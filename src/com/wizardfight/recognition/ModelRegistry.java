@@ -0,0 +1,242 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class holds the model currently used for recognition and replaces it
+ * without pausing recognition. New versions are loaded and validated in the
+ * background and published with a single reference swap. A recognition
+ * reads the engine once and works on that immutable object, so calls that
+ * are running during a swap finish on the old version.
+ *
+ * The registry can watch either a binary model file or a quantizer and model
+ * pair (.ser or GRT text). Files are polled for changes in size and
+ * modification time; a version that fails to load or validate is reported
+ * through getLastError and the current model stays in place.
+ */
+public final class ModelRegistry {
+
+    private final AtomicReference<RecognitionEngine> current = new AtomicReference<RecognitionEngine>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Exception lastError;
+
+    private ScheduledExecutorService watcher;
+    private File[] watchedFiles;
+    private String loadedSignature; // Files behind the current model
+    private String failedSignature; // Last files that did not load
+
+    /**
+     * @return the current engine, or null if no model has been published
+     */
+    public RecognitionEngine get() {
+        return current.get();
+    }
+
+    /**
+     * @return the number of models published so far
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * @return the reason the last reload failed, or null if it succeeded
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Validates the engine and makes it the current model.
+     *
+     * @throws IOException if the engine fails validation
+     */
+    public void publish(RecognitionEngine engine) throws IOException {
+        validate(engine);
+        current.set(engine);
+        version.incrementAndGet();
+    }
+
+    /**
+     * Validates the engine and makes it the current model, but only if the
+     * current model is still expected. Use this to publish an engine derived
+     * from the current one, so a model swapped in meanwhile is not lost.
+     *
+     * @param RecognitionEngine expected: the engine the new one was made from
+     * @return false if another model was published since expected was read
+     * @throws IOException if the engine fails validation
+     */
+    public boolean compareAndPublish(RecognitionEngine expected,
+            RecognitionEngine engine) throws IOException {
+        validate(engine);
+        if (!current.compareAndSet(expected, engine)) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Loads the model from a binary model file now and polls the file for
+     * changes every pollMillis milliseconds.
+     */
+    public void watch(File modelFile, long pollMillis) throws IOException {
+        watch(new File[] { modelFile }, pollMillis);
+    }
+
+    /**
+     * Loads the model from a quantizer and model pair now and polls both
+     * files for changes every pollMillis milliseconds. Files ending in .ser
+     * are read as serialized objects, all others as GRT text.
+     */
+    public void watch(File quantizerFile, File hmmFile, long pollMillis)
+            throws IOException {
+        watch(new File[] { quantizerFile, hmmFile }, pollMillis);
+    }
+
+    private synchronized void watch(File[] files, long pollMillis)
+            throws IOException {
+        stopWatching();
+        watchedFiles = files;
+        loadedSignature = null;
+        failedSignature = null;
+        if (!reload()) {
+            throw new IOException("Failed to load model", lastError);
+        }
+
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "model-registry");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        }, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopWatching() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    /**
+     * Loads the watched files if they changed since the last attempt and
+     * publishes the result if it is valid.
+     *
+     * @return true if the current model matches the watched files
+     */
+    public synchronized boolean reload() {
+        if (watchedFiles == null) {
+            return current.get() != null;
+        }
+        String signature = signature(watchedFiles);
+        if (signature.equals(loadedSignature)) {
+            return true;
+        }
+        if (signature.equals(failedSignature)) {
+            return false;
+        }
+        try {
+            publish(load(watchedFiles));
+            loadedSignature = signature;
+            lastError = null;
+            return true;
+        } catch (Exception ex) {
+            failedSignature = signature;
+            lastError = ex;
+            System.err.println("ERROR: Failed to reload model! " + ex);
+            return false;
+        }
+    }
+
+    static RecognitionEngine load(File[] files) throws IOException {
+        if (files.length == 1) {
+            return ModelFile.read(files[0]).compile();
+        }
+
+        KMeansQuantizer quantizer;
+        HMM hmm;
+        if (files[0].getName().endsWith(".ser")) {
+            quantizer = (KMeansQuantizer) Recognizer.readObject(files[0]);
+        } else {
+            quantizer = Recognizer.getQuantizerFromFile(files[0].getPath());
+        }
+        if (files[1].getName().endsWith(".ser")) {
+            hmm = (HMM) Recognizer.readObject(files[1]);
+        } else {
+            hmm = Recognizer.getHMMFromFile(files[1].getPath());
+        }
+        if (quantizer == null || hmm == null) {
+            throw new IOException("Failed to load " + files[0] + " and " + files[1]);
+        }
+        return RecognitionEngine.compile(quantizer, hmm);
+    }
+
+    /**
+     * Checks that the model can score every quantizer symbol and that every
+     * row of A, B and Pi is a probability distribution.
+     */
+    static void validate(RecognitionEngine engine) throws IOException {
+        if (engine == null || engine.getNumClasses() == 0) {
+            throw new IOException("The model has no classes");
+        }
+        final int numSymbols = engine.getNumSymbols();
+        for (int k = 0; k < engine.getNumClasses(); k++) {
+            HiddenMarkovModel model = engine.getModel(k);
+            final int N = model.numStates;
+            if (N <= 0 || model.pi.length != N || model.a.length != N
+                    || model.b.length != N) {
+                throw new IOException("Model " + (k + 1) + " has inconsistent sizes");
+            }
+            for (int i = 0; i < N; i++) {
+                if (model.a[i].length != N || model.b[i].length < numSymbols) {
+                    throw new IOException("Model " + (k + 1)
+                            + " does not match the quantizer with "
+                            + numSymbols + " symbols");
+                }
+                checkDistribution(model.a[i], k);
+                checkDistribution(model.b[i], k);
+            }
+            checkDistribution(model.pi, k);
+        }
+    }
+
+    private static void checkDistribution(double[] p, int k) throws IOException {
+        double sum = 0;
+        for (double v : p) {
+            if (!(v >= 0 && v <= 1)) {
+                throw new IOException("Model " + (k + 1)
+                        + " has an invalid probability " + v);
+            }
+            sum += v;
+        }
+        if (Math.abs(sum - 1) > 1e-3) {
+            throw new IOException("Model " + (k + 1)
+                    + " has a distribution summing to " + sum);
+        }
+    }
+
+    private static String signature(File[] files) {
+        StringBuilder sb = new StringBuilder();
+        for (File f : files) {
+            sb.append(f.getPath()).append(':').append(f.length()).append(':')
+                    .append(f.lastModified()).append(';');
+        }
+        return sb.toString();
+    }
+}
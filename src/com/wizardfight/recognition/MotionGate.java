@@ -0,0 +1,152 @@
+package com.wizardfight.recognition;
+
+import java.util.List;
+
+import com.wizardfight.components.Vector3d;
+
+/**
+ * This class decides cheaply whether a sequence holds any motion before it
+ * is quantized and scored. Two statistics are kept:
+ *
+ * variance: the variance of the acceleration magnitude (Vector3d.getLength)
+ * energy: the mean squared change of the acceleration between samples
+ *
+ * A sequence is idle if it is shorter than minSamples, or if both statistics
+ * are below their thresholds. Gestures of the bundled corpus have a variance
+ * and an energy above 2.5; a device held still stays well below 0.5.
+ */
+public final class MotionGate {
+
+    /**
+     * Running statistics of a sequence, updated one sample at a time.
+     */
+    public static final class Stats {
+
+        private int count = 0;
+        private double mean = 0; // Of the magnitude
+        private double m2 = 0; // Sum of squared deviations of the magnitude
+        private double deltaSum = 0; // Sum of squared changes between samples
+        private double px;
+        private double py;
+        private double pz;
+
+        public void add(double x, double y, double z) {
+            double length = Math.sqrt(x * x + y * y + z * z);
+            count++;
+            double d = length - mean;
+            mean += d / count;
+            m2 += d * (length - mean);
+            if (count > 1) {
+                double dx = x - px;
+                double dy = y - py;
+                double dz = z - pz;
+                deltaSum += dx * dx + dy * dy + dz * dz;
+            }
+            px = x;
+            py = y;
+            pz = z;
+        }
+
+        public void clear() {
+            count = 0;
+            mean = 0;
+            m2 = 0;
+            deltaSum = 0;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public double getMeanLength() {
+            return mean;
+        }
+
+        public double getVariance() {
+            return count == 0 ? 0 : m2 / count;
+        }
+
+        public double getEnergy() {
+            return count < 2 ? 0 : deltaSum / (count - 1);
+        }
+    }
+
+    private final double minVariance;
+    private final double minEnergy;
+    private final int minSamples;
+
+    public MotionGate() {
+        this(0.5, 0.5, 5);
+    }
+
+    /**
+     * @param double minVariance: the magnitude variance below which a
+     * sequence may be idle
+     * @param double minEnergy: the mean squared change below which a
+     * sequence may be idle
+     * @param int minSamples: sequences shorter than this are always idle
+     */
+    public MotionGate(double minVariance, double minEnergy, int minSamples) {
+        this.minVariance = minVariance;
+        this.minEnergy = minEnergy;
+        this.minSamples = minSamples;
+    }
+
+    public boolean isIdle(Stats stats) {
+        return stats.getCount() < minSamples
+                || (stats.getVariance() < minVariance
+                && stats.getEnergy() < minEnergy);
+    }
+
+    public boolean isIdle(List<Vector3d> records) {
+        Stats stats = new Stats();
+        for (int i = 0; i < records.size(); i++) {
+            Vector3d v = records.get(i);
+            stats.add(v.x, v.y, v.z);
+        }
+        return isIdle(stats);
+    }
+
+    /**
+     * @param double[] xyz: numSamples interleaved x, y, z samples starting at
+     * offset
+     */
+    public boolean isIdle(double[] xyz, int offset, int numSamples) {
+        Stats stats = new Stats();
+        for (int t = 0; t < numSamples; t++) {
+            int o = offset + 3 * t;
+            stats.add(xyz[o], xyz[o + 1], xyz[o + 2]);
+        }
+        return isIdle(stats);
+    }
+
+    public boolean isIdle(float[] xyz, int offset, int numSamples) {
+        Stats stats = new Stats();
+        for (int t = 0; t < numSamples; t++) {
+            int o = offset + 3 * t;
+            stats.add(xyz[o], xyz[o + 1], xyz[o + 2]);
+        }
+        return isIdle(stats);
+    }
+
+    public boolean isIdle(double[] x, double[] y, double[] z, int offset,
+            int numSamples) {
+        Stats stats = new Stats();
+        for (int t = offset; t < offset + numSamples; t++) {
+            stats.add(x[t], y[t], z[t]);
+        }
+        return isIdle(stats);
+    }
+
+    public double getMinVariance() {
+        return minVariance;
+    }
+
+    public double getMinEnergy() {
+        return minEnergy;
+    }
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+}
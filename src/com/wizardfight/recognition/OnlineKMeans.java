@@ -0,0 +1,229 @@
+package com.wizardfight.recognition;
+
+import java.io.IOException;
+
+/**
+ * This class adapts a quantizer codebook to live samples with mini-batch
+ * k-means. Each batch is assigned to the current centres first, then every
+ * centre moves towards its samples with a learning rate of 1 / count, where
+ * count is the number of samples the centre has absorbed. Counts start at
+ * initialCount, so a trained codebook moves slowly, and stop at maxCount, so
+ * the centres keep following a drifting sensor bias.
+ *
+ * The centres are only touched by the updating thread. Every publishInterval
+ * samples an immutable copy is published through a volatile reference, and
+ * optionally to a ModelRegistry, so recognition threads never wait for an
+ * update.
+ *
+ * The registry is only updated if it still holds the engine the centres were
+ * adapted for. If another model was published meanwhile, its symbols may
+ * mean something else, so the centres and counts start over from the new
+ * engine's codebook instead of replacing it.
+ */
+public final class OnlineKMeans {
+
+    private final double initialCount;
+    private final double maxCount;
+    private final int publishInterval;
+
+    // Guarded by this
+    private int numClusters;
+    private int numDimensions;
+    private double[][] centres;
+    private double[] counts;
+    private double[][] sums; // Per batch sums of the assigned samples
+    private int[] batchCounts;
+    private int[] batchAssign = new int[0];
+    private double[] dist;
+    private long numSamples = 0;
+    private long samplesSincePublish = 0;
+    private ModelRegistry registry;
+    private RecognitionEngine base; // The registry engine the centres are for
+
+    private volatile Codebook snapshot;
+    private volatile long numSnapshots = 0;
+
+    /**
+     * @param KMeansQuantizer quantizer: the trained quantizer to start from
+     * @param double initialCount: how many samples each trained centre counts
+     * for, i.e. the inverse of the first learning rate
+     * @param double maxCount: the largest count, i.e. the inverse of the
+     * smallest learning rate
+     * @param int publishInterval: the number of samples between snapshots
+     */
+    public OnlineKMeans(KMeansQuantizer quantizer, double initialCount,
+            double maxCount, int publishInterval) {
+        this.initialCount = Math.max(1, initialCount);
+        this.maxCount = Math.max(this.initialCount, maxCount);
+        this.publishInterval = Math.max(1, publishInterval);
+        reset(new Codebook(quantizer.clusters, quantizer.numClusters,
+                quantizer.numInputDimensions));
+    }
+
+    /**
+     * Starts over from the given codebook, with every count at initialCount.
+     */
+    private void reset(Codebook cb) {
+        numClusters = cb.numClusters;
+        numDimensions = cb.numDimensions;
+        centres = new double[numClusters][numDimensions];
+        counts = new double[numClusters];
+        for (int k = 0; k < numClusters; k++) {
+            for (int d = 0; d < numDimensions; d++) {
+                centres[k][d] = cb.getCentre(k, d);
+            }
+            counts[k] = initialCount;
+        }
+        sums = new double[numClusters][numDimensions];
+        batchCounts = new int[numClusters];
+        dist = new double[numClusters];
+        snapshot = cb;
+    }
+
+    /**
+     * Publishes every new snapshot to the registry as well, replacing the
+     * codebook of the registry's current engine. The current centres are
+     * taken to belong to that engine.
+     *
+     * @param ModelRegistry registry: the registry, or null to stop
+     */
+    public synchronized void setRegistry(ModelRegistry registry) {
+        this.registry = registry;
+        base = registry != null ? registry.get() : null;
+    }
+
+    /**
+     * Updates the centres with one mini-batch.
+     *
+     * @param double[] samples: interleaved input vectors, numDimensions
+     * values per sample, starting at offset
+     * @param int numBatchSamples: the number of samples in the batch
+     */
+    public synchronized void update(double[] samples, int offset,
+            int numBatchSamples) {
+        if (numBatchSamples <= 0) {
+            return;
+        }
+        if (batchAssign.length < numBatchSamples) {
+            batchAssign = new int[numBatchSamples];
+        }
+
+        // Assign the whole batch against the centres it started with
+        Codebook current = new Codebook(centres, numClusters, numDimensions);
+        for (int t = 0; t < numBatchSamples; t++) {
+            batchAssign[t] = current.nearest(samples,
+                    offset + t * numDimensions, dist);
+        }
+
+        for (int k = 0; k < numClusters; k++) {
+            batchCounts[k] = 0;
+            for (int d = 0; d < numDimensions; d++) {
+                sums[k][d] = 0;
+            }
+        }
+        for (int t = 0; t < numBatchSamples; t++) {
+            int k = batchAssign[t];
+            int o = offset + t * numDimensions;
+            batchCounts[k]++;
+            for (int d = 0; d < numDimensions; d++) {
+                sums[k][d] += samples[o + d];
+            }
+        }
+
+        // Applying n per-sample steps of rate 1 / count gives the running
+        // mean, with the batch mean weighted n / (count + n)
+        for (int k = 0; k < numClusters; k++) {
+            int n = batchCounts[k];
+            if (n == 0) {
+                continue;
+            }
+            double count = Math.min(counts[k] + n, maxCount);
+            double eta = n / Math.max(count, n);
+            for (int d = 0; d < numDimensions; d++) {
+                centres[k][d] += eta * (sums[k][d] / n - centres[k][d]);
+            }
+            counts[k] = count;
+        }
+
+        numSamples += numBatchSamples;
+        samplesSincePublish += numBatchSamples;
+        if (samplesSincePublish >= publishInterval) {
+            publish();
+        }
+    }
+
+    /**
+     * Publishes the current centres now.
+     */
+    public synchronized void publish() {
+        samplesSincePublish = 0;
+        Codebook cb = new Codebook(centres, numClusters, numDimensions);
+        snapshot = cb;
+        numSnapshots++;
+
+        if (registry == null) {
+            return;
+        }
+        RecognitionEngine engine = registry.get();
+        if (engine == null) {
+            return;
+        }
+        try {
+            if (engine == base) {
+                RecognitionEngine next = engine.withCodebook(cb);
+                if (registry.compareAndPublish(engine, next)) {
+                    base = next;
+                    return;
+                }
+                engine = registry.get();
+            }
+        } catch (IOException ex) {
+            System.err.println("ERROR: Failed to publish codebook! " + ex);
+            return;
+        }
+        // Another model was published, adapt its codebook from now on
+        if (engine != null) {
+            reset(engine.getCodebook());
+        }
+        base = engine;
+    }
+
+    /**
+     * @return the last published codebook
+     */
+    Codebook getCodebook() {
+        return snapshot;
+    }
+
+    /**
+     * @return a quantizer using the last published codebook
+     */
+    public KMeansQuantizer getQuantizer() {
+        Codebook cb = snapshot;
+        double[][] clusters = new double[cb.numClusters][cb.numDimensions];
+        for (int k = 0; k < cb.numClusters; k++) {
+            for (int d = 0; d < cb.numDimensions; d++) {
+                clusters[k][d] = cb.getCentre(k, d);
+            }
+        }
+        KMeansQuantizer quantizer = new KMeansQuantizer(cb.numClusters);
+        quantizer.setClusters(clusters);
+        return quantizer;
+    }
+
+    /**
+     * @return an engine sharing the class models of the given engine that
+     * quantizes with the last published codebook
+     */
+    public RecognitionEngine apply(RecognitionEngine engine) {
+        return engine.withCodebook(snapshot);
+    }
+
+    public synchronized long getNumSamples() {
+        return numSamples;
+    }
+
+    public long getNumSnapshots() {
+        return numSnapshots;
+    }
+}
@@ -0,0 +1,154 @@
+package com.wizardfight.recognition;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * This class scores one observation sequence against many class models,
+ * splitting the class models across a fork-join pool when the vocabulary
+ * and the sequence are large enough to pay for the hand-off. Below the
+ * thresholds the models are scored serially on the calling thread.
+ *
+ * The thresholds default to the system properties
+ * wizardfight.parallel.minClasses and wizardfight.parallel.minWork.
+ */
+public final class ParallelClassScorer {
+
+    public static final int DEFAULT_MIN_CLASSES = Integer.getInteger(
+            "wizardfight.parallel.minClasses", 16);
+    // Multiply-adds of the forward pass, i.e. T * sum(numStates^2)
+    public static final long DEFAULT_MIN_WORK = Long.getLong(
+            "wizardfight.parallel.minWork", 100000L);
+
+    private static volatile ParallelClassScorer defaultScorer;
+
+    private final ForkJoinPool pool;
+    private final int minClasses;
+    private final long minWork;
+
+    /**
+     * @param ForkJoinPool pool: the pool the class models are scored on
+     * @param int minClasses: the smallest number of classes scored in parallel
+     * @param long minWork: the smallest number of forward multiply-adds,
+     * T * sum(numStates^2), scored in parallel
+     */
+    public ParallelClassScorer(ForkJoinPool pool, int minClasses, long minWork) {
+        this.pool = pool;
+        this.minClasses = minClasses;
+        this.minWork = minWork;
+    }
+
+    /**
+     * @return a scorer with the default thresholds on a pool with one worker
+     * per core
+     */
+    public static ParallelClassScorer getDefault() {
+        ParallelClassScorer scorer = defaultScorer;
+        if (scorer == null) {
+            synchronized (ParallelClassScorer.class) {
+                scorer = defaultScorer;
+                if (scorer == null) {
+                    scorer = new ParallelClassScorer(new ForkJoinPool(),
+                            DEFAULT_MIN_CLASSES, DEFAULT_MIN_WORK);
+                    defaultScorer = scorer;
+                }
+            }
+        }
+        return scorer;
+    }
+
+    /**
+     * @return a scorer that never leaves the calling thread
+     */
+    public static ParallelClassScorer serial() {
+        return new ParallelClassScorer(null, Integer.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    public int getMinClasses() {
+        return minClasses;
+    }
+
+    public long getMinWork() {
+        return minWork;
+    }
+
+    boolean isParallel(int numClasses, long stepWork, int length) {
+        return pool != null && numClasses >= minClasses
+                && stepWork * length >= minWork;
+    }
+
+    /**
+     * Stores the score of obs under class k of the pack in classDistances[k],
+     * recording the time each class takes in classLatency[k] unless it is
+     * null.
+     *
+     * @param ScoringMode mode: FORWARD or RUN_LENGTH for the log likelihood,
+     * VITERBI for the log probability of the best state path
+     */
+    void score(ModelPack pack, ScoringMode mode, int[] obs,
+            double[] classDistances, LatencyHistogram[] classLatency) {
+        if (!isParallel(pack.numClasses, pack.stepWork, obs.length)) {
+            scoreRange(pack, mode, obs, classDistances, classLatency, 0,
+                    pack.numClasses);
+            return;
+        }
+
+        // One chunk of classes per worker, no further splitting
+        int grain = (pack.numClasses + pool.getParallelism() - 1)
+                / pool.getParallelism();
+        pool.invoke(new ScoringTask(pack, mode, obs, classDistances,
+                classLatency, 0, pack.numClasses, grain));
+    }
+
+    private static void scoreRange(ModelPack pack, ScoringMode mode,
+            int[] obs, double[] classDistances,
+            LatencyHistogram[] classLatency, int from, int to) {
+        for (int k = from; k < to; k++) {
+            long start = classLatency == null ? 0 : System.nanoTime();
+            classDistances[k] = pack.score(k, mode, obs);
+            if (classLatency != null) {
+                classLatency[k].record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private static final class ScoringTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final ModelPack pack;
+        private final ScoringMode mode;
+        private final int[] obs;
+        private final double[] classDistances;
+        private final LatencyHistogram[] classLatency;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        ScoringTask(ModelPack pack, ScoringMode mode, int[] obs,
+                double[] classDistances, LatencyHistogram[] classLatency,
+                int from, int to, int grain) {
+            this.pack = pack;
+            this.mode = mode;
+            this.obs = obs;
+            this.classDistances = classDistances;
+            this.classLatency = classLatency;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                scoreRange(pack, mode, obs, classDistances, classLatency, from,
+                        to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ScoringTask(pack, mode, obs, classDistances,
+                    classLatency, from, mid, grain),
+                    new ScoringTask(pack, mode, obs, classDistances,
+                            classLatency, mid, to, grain));
+        }
+    }
+}
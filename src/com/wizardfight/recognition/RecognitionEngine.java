@@ -0,0 +1,418 @@
+package com.wizardfight.recognition;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.wizardfight.components.Vector3d;
+
+/**
+ * This class is an immutable, compiled copy of a quantizer and its class
+ * models. All methods are free of shared mutable state, so a single engine
+ * can serve any number of threads without locking.
+ */
+public final class RecognitionEngine {
+
+    private static final AtomicLong nextId = new AtomicLong();
+
+    // Unique per engine, so cached results never outlive the engine's model
+    private final long id = nextId.incrementAndGet();
+    private final Codebook codebook;
+    private final HiddenMarkovModel[] models;
+    private final ModelPack pack; // All class models in one block
+    private final int[] classLabels;
+    private final boolean useNullRejection;
+    private final double[] nullRejectionThresholds;
+    private final ParallelClassScorer scorer;
+    private final ScoringMode scoringMode;
+    // Classes further than this behind the best are dropped while scoring
+    private final double beamWidth;
+    private final ResultCache resultCache; // Null if results are not cached
+    private final RecognitionMetrics metrics;
+    private final LatencyHistogram[] classLatency;
+    private final AtomicLongArray classPruned;
+
+    private RecognitionEngine(KMeansQuantizer quantizer, HMM hmm) {
+        codebook = new Codebook(quantizer.clusters, quantizer.numClusters,
+                quantizer.numInputDimensions);
+
+        models = new HiddenMarkovModel[hmm.numClasses];
+        for (int k = 0; k < models.length; k++) {
+            models[k] = hmm.models.get(k).copy();
+        }
+        classLabels = hmm.classLabels.clone();
+        useNullRejection = hmm.useNullRejection;
+        nullRejectionThresholds = hmm.nullRejectionThresholds == null
+                ? new double[models.length]
+                : hmm.nullRejectionThresholds.clone();
+        pack = new ModelPack(models);
+        scorer = ParallelClassScorer.getDefault();
+        scoringMode = ScoringMode.getDefault();
+        beamWidth = BeamScorer.DEFAULT_BEAM_WIDTH;
+        resultCache = null;
+        if (scoringMode == ScoringMode.RUN_LENGTH) {
+            // Build the operators now rather than on the first recognition
+            pack.getOperators();
+        }
+        metrics = RecognitionMetrics.getDefault();
+        classLatency = metrics.getClassScoreHistograms(models.length);
+        classPruned = metrics.getClassPruneCounters(models.length);
+    }
+
+    private RecognitionEngine(RecognitionEngine engine, Codebook codebook,
+            ParallelClassScorer scorer, ScoringMode scoringMode,
+            double beamWidth, ResultCache resultCache) {
+        this.codebook = codebook;
+        models = engine.models;
+        classLabels = engine.classLabels;
+        useNullRejection = engine.useNullRejection;
+        nullRejectionThresholds = engine.nullRejectionThresholds;
+        pack = engine.pack;
+        this.scorer = scorer;
+        this.scoringMode = scoringMode;
+        this.beamWidth = beamWidth;
+        this.resultCache = resultCache;
+        if (scoringMode == ScoringMode.RUN_LENGTH) {
+            pack.getOperators();
+        }
+        metrics = engine.metrics;
+        classLatency = engine.classLatency;
+        classPruned = engine.classPruned;
+    }
+
+    /**
+     * Compiles the quantizer and the HMM into an engine. The engine keeps its
+     * own copies, so later changes to either object do not affect it. The
+     * engine scores in ScoringMode.getDefault(), pruned to the beam width of
+     * the wizardfight.beamWidth system property if it is set.
+     */
+    public static RecognitionEngine compile(KMeansQuantizer quantizer, HMM hmm) {
+        return new RecognitionEngine(quantizer, hmm);
+    }
+
+    /**
+     * @return an engine sharing this engine's model that splits class scoring
+     * according to the given scorer
+     */
+    public RecognitionEngine withScorer(ParallelClassScorer scorer) {
+        return new RecognitionEngine(this, codebook, scorer, scoringMode,
+                beamWidth, resultCache);
+    }
+
+    /**
+     * @return an engine sharing this engine's model that scores the class
+     * models in the given mode
+     */
+    public RecognitionEngine withScoringMode(ScoringMode scoringMode) {
+        return new RecognitionEngine(this, codebook, scorer, scoringMode,
+                beamWidth, resultCache);
+    }
+
+    public ScoringMode getScoringMode() {
+        return scoringMode;
+    }
+
+    /**
+     * @return an engine sharing this engine's model that scores the class
+     * models in lockstep, dropping classes that fall more than beamWidth
+     * behind the best class in log likelihood, see BeamScorer
+     *
+     * @param double beamWidth: the beam width, Double.POSITIVE_INFINITY to
+     * score every class to the end
+     */
+    public RecognitionEngine withBeamWidth(double beamWidth) {
+        if (!(beamWidth > 0)) {
+            throw new IllegalArgumentException("Invalid beam width " + beamWidth);
+        }
+        return new RecognitionEngine(this, codebook, scorer, scoringMode,
+                beamWidth, resultCache);
+    }
+
+    public double getBeamWidth() {
+        return beamWidth;
+    }
+
+    /**
+     * @return an engine sharing this engine's model that looks up every
+     * quantized sequence in the cache before scoring it
+     *
+     * @param ResultCache resultCache: the cache, which may be shared by many
+     * engines, or null to score every sequence
+     */
+    public RecognitionEngine withResultCache(ResultCache resultCache) {
+        return new RecognitionEngine(this, codebook, scorer, scoringMode,
+                beamWidth, resultCache);
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return an engine sharing this engine's class models that quantizes
+     * with the given codebook, which must have the same number of clusters
+     */
+    RecognitionEngine withCodebook(Codebook codebook) {
+        if (codebook.numClusters != this.codebook.numClusters) {
+            throw new IllegalArgumentException("The codebook has "
+                    + codebook.numClusters + " clusters, the model expects "
+                    + this.codebook.numClusters);
+        }
+        return new RecognitionEngine(this, codebook, scorer, scoringMode,
+                beamWidth, resultCache);
+    }
+
+    Codebook getCodebook() {
+        return codebook;
+    }
+
+    public int getNumClasses() {
+        return models.length;
+    }
+
+    public int getNumSymbols() {
+        return codebook.numClusters;
+    }
+
+    /**
+     * @return the number of bytes taken by the codebook, the model matrices
+     * and their packed copy. A RUN_LENGTH engine also counts the run-length
+     * operators it builds when it is created, which are often much larger
+     * than the model itself. The size of an engine never changes, so a
+     * ModelCache can subtract what it added.
+     */
+    public long getSizeInBytes() {
+        long doubles = (long) codebook.numClusters * codebook.numDimensions
+                + nullRejectionThresholds.length;
+        for (HiddenMarkovModel model : models) {
+            doubles += model.pi.length;
+            for (double[] row : model.a) {
+                doubles += row.length;
+            }
+            for (double[] row : model.b) {
+                doubles += row.length;
+            }
+        }
+        long bytes = doubles * 8 + classLabels.length * 4
+                + pack.getSizeInBytes();
+        if (scoringMode == ScoringMode.RUN_LENGTH) {
+            bytes += pack.getOperators().getSizeInBytes();
+        }
+        return bytes;
+    }
+
+    HiddenMarkovModel getModel(int k) {
+        return models[k];
+    }
+
+    ModelPack getPack() {
+        return pack;
+    }
+
+    int getClassLabel(int k) {
+        return classLabels[k];
+    }
+
+    /**
+     * @return the index of the codebook cluster nearest to the sample
+     */
+    public int quantize(double[] sample) {
+        return codebook.nearest(sample, 0);
+    }
+
+    /**
+     * Quantizes numSamples interleaved x, y, z samples in one pass.
+     *
+     * @param int[] out: receives the symbol of each sample
+     */
+    public void quantize(double[] xyz, int offset, int numSamples, int[] out) {
+        codebook.quantize(xyz, offset, numSamples, out, 0);
+    }
+
+    public int[] quantize(List<Vector3d> records) {
+        int[] timeSeries = new int[records.size()];
+        double[] rec = new double[3];
+        for (int j = 0; j < timeSeries.length; j++) {
+            Vector3d v = records.get(j);
+            rec[0] = v.x;
+            rec[1] = v.y;
+            rec[2] = v.z;
+            timeSeries[j] = codebook.nearest(rec, 0);
+        }
+        return timeSeries;
+    }
+
+    /**
+     * Scores the quantized sequence against every class model, in this
+     * engine's scoring mode. Classes dropped by beam pruning get a distance
+     * of Double.NEGATIVE_INFINITY. With a result cache, a sequence this
+     * engine has scored before is not scored again.
+     *
+     * @param int[] timeSeries: the quantized sequence, must not be empty
+     */
+    public RecognitionResult predict(int[] timeSeries) {
+        if (resultCache == null) {
+            return score(timeSeries, new double[models.length]);
+        }
+
+        ResultCache.Key key = new ResultCache.Key(id, timeSeries);
+        double[] cached = resultCache.get(key);
+        if (cached != null) {
+            RecognitionResult result = newResult(cached);
+            if (metrics.isEnabled()) {
+                metrics.recordCacheHit();
+                metrics.recordShape(result.getShape());
+            }
+            return result;
+        }
+        if (metrics.isEnabled()) {
+            metrics.recordCacheMiss();
+        }
+        double[] classDistances = new double[models.length];
+        RecognitionResult result = score(timeSeries, classDistances);
+        resultCache.put(key, classDistances);
+        return result;
+    }
+
+    private RecognitionResult score(int[] timeSeries, double[] classDistances) {
+        boolean beam = beamWidth != Double.POSITIVE_INFINITY;
+        if (!metrics.isEnabled()) {
+            if (beam) {
+                BeamScorer.score(pack, scoringMode, beamWidth, timeSeries,
+                        classDistances, null);
+            } else {
+                scorer.score(pack, scoringMode, timeSeries, classDistances,
+                        null);
+            }
+            return newResult(classDistances);
+        }
+
+        long start = System.nanoTime();
+        if (beam) {
+            // Lockstep scoring has no per class time
+            BeamScorer.score(pack, scoringMode, beamWidth, timeSeries,
+                    classDistances, classPruned);
+        } else {
+            scorer.score(pack, scoringMode, timeSeries, classDistances,
+                    classLatency);
+        }
+        long scored = System.nanoTime();
+        RecognitionResult result = newResult(classDistances);
+        long decided = System.nanoTime();
+        metrics.score.record(scored - start);
+        metrics.decision.record(decided - scored);
+        metrics.recordShape(result.getShape());
+        return result;
+    }
+
+    /**
+     * Finds the best state path of the quantized sequence through one class
+     * model with the Viterbi algorithm.
+     *
+     * @param int classIndex: the index of the class model, from 0 to
+     * getNumClasses() - 1
+     * @param int[] timeSeries: the quantized sequence, must not be empty
+     * @return the state of each timestep
+     */
+    public int[] getStatePath(int classIndex, int[] timeSeries) {
+        int[] path = new int[timeSeries.length];
+        pack.viterbiPath(classIndex, timeSeries, 0, timeSeries.length, path);
+        return path;
+    }
+
+    public RecognitionResult recognize(List<Vector3d> records) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        return predictQuantized(quantize(records), start);
+    }
+
+    /**
+     * Recognizes numSamples interleaved x, y, z samples.
+     *
+     * @param double[] xyz: the samples, starting at offset
+     * @param int numSamples: the number of samples, must not be 0
+     */
+    public RecognitionResult recognize(double[] xyz, int offset,
+            int numSamples) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int[] timeSeries = new int[numSamples];
+        codebook.quantize(xyz, offset, numSamples, timeSeries, 0);
+        return predictQuantized(timeSeries, start);
+    }
+
+    /**
+     * Same as recognize(double[], int, int) for float samples.
+     */
+    public RecognitionResult recognize(float[] xyz, int offset,
+            int numSamples) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int[] timeSeries = new int[numSamples];
+        double[] rec = new double[3];
+        for (int t = 0; t < numSamples; t++) {
+            int o = offset + 3 * t;
+            rec[0] = xyz[o];
+            rec[1] = xyz[o + 1];
+            rec[2] = xyz[o + 2];
+            timeSeries[t] = codebook.nearest(rec, 0);
+        }
+        return predictQuantized(timeSeries, start);
+    }
+
+    /**
+     * Recognizes numSamples samples held in three columns.
+     *
+     * @param int offset: the index of the first sample in each column
+     */
+    public RecognitionResult recognize(double[] x, double[] y, double[] z,
+            int offset, int numSamples) {
+        long start = metrics.isEnabled() ? System.nanoTime() : 0;
+        int[] timeSeries = new int[numSamples];
+        double[] rec = new double[3];
+        for (int t = 0; t < numSamples; t++) {
+            rec[0] = x[offset + t];
+            rec[1] = y[offset + t];
+            rec[2] = z[offset + t];
+            timeSeries[t] = codebook.nearest(rec, 0);
+        }
+        return predictQuantized(timeSeries, start);
+    }
+
+    public RecognitionResult recognize(SampleBuffer samples) {
+        return recognize(samples.getX(), samples.getY(), samples.getZ(), 0,
+                samples.size());
+    }
+
+    /**
+     * Recognizes the samples in the ring, oldest first.
+     */
+    public RecognitionResult recognize(SampleRingBuffer ring) {
+        double[] xyz = ring.getSamples();
+        return recognize(xyz, ring.getOffset(), ring.size());
+    }
+
+    // Records the quantization time since start, if metrics are on
+    private RecognitionResult predictQuantized(int[] timeSeries, long start) {
+        if (metrics.isEnabled()) {
+            metrics.quantize.record(System.nanoTime() - start);
+        }
+        return predict(timeSeries);
+    }
+
+    /**
+     * Creates a session that scores a gesture sample by sample.
+     */
+    public RecognitionSession newSession() {
+        return new RecognitionSession(this);
+    }
+
+    /**
+     * Creates a spotter that finds gestures in a continuous sample stream.
+     */
+    public GestureSpotter newSpotter() {
+        return new GestureSpotter(this);
+    }
+
+    RecognitionResult newResult(double[] classDistances) {
+        return new RecognitionResult(classDistances, classLabels,
+                useNullRejection, nullRejectionThresholds);
+    }
+}
@@ -0,0 +1,249 @@
+package com.wizardfight.recognition;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.ObjectName;
+
+import com.wizardfight.Shape;
+
+/**
+ * This class collects per-stage recognition latencies and per-shape counts.
+ * Recording takes a System.nanoTime call and a few atomic increments, and
+ * can be switched off at run time. The default instance is registered with
+ * the platform MBean server when it is first used.
+ */
+public final class RecognitionMetrics implements RecognitionMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.wizardfight.recognition:type=RecognitionMetrics";
+
+    private static volatile RecognitionMetrics defaultMetrics;
+
+    private volatile boolean enabled = true;
+
+    final LatencyHistogram parse = new LatencyHistogram();
+    final LatencyHistogram quantize = new LatencyHistogram();
+    final LatencyHistogram score = new LatencyHistogram();
+    final LatencyHistogram decision = new LatencyHistogram();
+    // Grown when an engine with more classes is compiled
+    private volatile LatencyHistogram[] classScore = new LatencyHistogram[0];
+    private volatile AtomicLongArray classPruned = new AtomicLongArray(0);
+    private final AtomicLongArray shapeCounts = new AtomicLongArray(Shape.values().length);
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * @return the metrics recorded by every engine, registered as an MBean
+     */
+    public static RecognitionMetrics getDefault() {
+        RecognitionMetrics metrics = defaultMetrics;
+        if (metrics == null) {
+            synchronized (RecognitionMetrics.class) {
+                metrics = defaultMetrics;
+                if (metrics == null) {
+                    metrics = new RecognitionMetrics();
+                    try {
+                        ManagementFactory.getPlatformMBeanServer().registerMBean(
+                                metrics, new ObjectName(OBJECT_NAME));
+                    } catch (Exception ex) {
+                        System.err.println("ERROR: Failed to register metrics MBean! " + ex);
+                    }
+                    defaultMetrics = metrics;
+                }
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return one histogram per class model, at least numClasses long
+     */
+    synchronized LatencyHistogram[] getClassScoreHistograms(int numClasses) {
+        LatencyHistogram[] current = classScore;
+        if (current.length >= numClasses) {
+            return current;
+        }
+        LatencyHistogram[] grown = new LatencyHistogram[numClasses];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int k = current.length; k < numClasses; k++) {
+            grown[k] = new LatencyHistogram();
+        }
+        classScore = grown;
+        return grown;
+    }
+
+    /**
+     * @return one beam prune counter per class model, at least numClasses
+     * long
+     */
+    synchronized AtomicLongArray getClassPruneCounters(int numClasses) {
+        AtomicLongArray current = classPruned;
+        if (current.length() >= numClasses) {
+            return current;
+        }
+        AtomicLongArray grown = new AtomicLongArray(numClasses);
+        for (int k = 0; k < current.length(); k++) {
+            grown.set(k, current.get(k));
+        }
+        classPruned = grown;
+        return grown;
+    }
+
+    void recordShape(Shape shape) {
+        shapeCounts.incrementAndGet(shape.ordinal());
+    }
+
+    void recordSkipped() {
+        skipped.incrementAndGet();
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    @Override
+    public double getSkipRate() {
+        long s = skipped.get();
+        long total = s + getRecognitionCount();
+        return total == 0 ? 0 : (double) s / total;
+    }
+
+    void recordCacheHit() {
+        cacheHits.incrementAndGet();
+    }
+
+    void recordCacheMiss() {
+        cacheMisses.incrementAndGet();
+    }
+
+    @Override
+    public long getResultCacheHitCount() {
+        return cacheHits.get();
+    }
+
+    @Override
+    public long getResultCacheMissCount() {
+        return cacheMisses.get();
+    }
+
+    @Override
+    public double getResultCacheHitRate() {
+        long h = cacheHits.get();
+        long total = h + cacheMisses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public long getRecognitionCount() {
+        long total = 0;
+        for (int i = 0; i < shapeCounts.length(); i++) {
+            total += shapeCounts.get(i);
+        }
+        return total;
+    }
+
+    @Override
+    public long getFailCount() {
+        return shapeCounts.get(Shape.FAIL.ordinal());
+    }
+
+    @Override
+    public double getFailRate() {
+        long total = getRecognitionCount();
+        return total == 0 ? 0 : (double) getFailCount() / total;
+    }
+
+    @Override
+    public Map<String, Long> getShapeCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (Shape s : Shape.values()) {
+            counts.put(s.toString(), shapeCounts.get(s.ordinal()));
+        }
+        return counts;
+    }
+
+    @Override
+    public LatencyStats getParseLatency() {
+        return LatencyStats.of(parse);
+    }
+
+    @Override
+    public LatencyStats getQuantizeLatency() {
+        return LatencyStats.of(quantize);
+    }
+
+    @Override
+    public LatencyStats getScoreLatency() {
+        return LatencyStats.of(score);
+    }
+
+    @Override
+    public Map<String, LatencyStats> getClassScoreLatency() {
+        Map<String, LatencyStats> stats = new LinkedHashMap<String, LatencyStats>();
+        LatencyHistogram[] current = classScore;
+        for (int k = 0; k < current.length; k++) {
+            stats.put(String.valueOf(k + 1), LatencyStats.of(current[k]));
+        }
+        return stats;
+    }
+
+    @Override
+    public Map<String, Long> getClassPruneCounts() {
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        AtomicLongArray current = classPruned;
+        for (int k = 0; k < current.length(); k++) {
+            counts.put(String.valueOf(k + 1), current.get(k));
+        }
+        return counts;
+    }
+
+    @Override
+    public LatencyStats getDecisionLatency() {
+        return LatencyStats.of(decision);
+    }
+
+    @Override
+    public void reset() {
+        parse.reset();
+        quantize.reset();
+        score.reset();
+        decision.reset();
+        for (LatencyHistogram h : classScore) {
+            h.reset();
+        }
+        for (int i = 0; i < shapeCounts.length(); i++) {
+            shapeCounts.set(i, 0);
+        }
+        skipped.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        AtomicLongArray pruned = classPruned;
+        for (int k = 0; k < pruned.length(); k++) {
+            pruned.set(k, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "recognitions=" + getRecognitionCount() + " fails="
+                + getFailCount() + " skipped=" + getSkippedCount()
+                + " cacheHits=" + getResultCacheHitCount()
+                + "\nparse: " + parse + "\nquantize: " + quantize
+                + "\nscore: " + score + "\ndecision: " + decision;
+    }
+}
@@ -0,0 +1,76 @@
+package com.wizardfight.recognition;
+
+import java.util.Map;
+
+/**
+ * Management interface of RecognitionMetrics, registered as
+ * com.wizardfight.recognition:type=RecognitionMetrics.
+ */
+public interface RecognitionMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getRecognitionCount();
+
+    long getFailCount();
+
+    /**
+     * @return the share of recognitions that ended in Shape.FAIL
+     */
+    double getFailRate();
+
+    /**
+     * @return the number of recognitions per Shape name
+     */
+    Map<String, Long> getShapeCounts();
+
+    /**
+     * @return the number of sequences the motion gate returned as
+     * Shape.NONE without scoring them
+     */
+    long getSkippedCount();
+
+    /**
+     * @return the share of recognize requests the motion gate skipped
+     */
+    double getSkipRate();
+
+    /**
+     * @return the number of predictions served by a ResultCache
+     */
+    long getResultCacheHitCount();
+
+    long getResultCacheMissCount();
+
+    /**
+     * @return the share of cached engine predictions served by the cache
+     */
+    double getResultCacheHitRate();
+
+    LatencyStats getParseLatency();
+
+    LatencyStats getQuantizeLatency();
+
+    /**
+     * @return the time to score a sequence against all the class models
+     */
+    LatencyStats getScoreLatency();
+
+    /**
+     * @return the scoring time of each class model, by model number
+     * starting at 1
+     */
+    Map<String, LatencyStats> getClassScoreLatency();
+
+    /**
+     * @return how often beam pruning dropped each class model, by model
+     * number starting at 1
+     */
+    Map<String, Long> getClassPruneCounts();
+
+    LatencyStats getDecisionLatency();
+
+    void reset();
+}
@@ -0,0 +1,81 @@
+package com.wizardfight.recognition;
+
+import com.wizardfight.Shape;
+
+/**
+ * This class holds the outcome of a single recognition. Instances are
+ * immutable and are never shared between calls.
+ */
+public final class RecognitionResult {
+
+    private final int predictedClassLabel;
+    private final int bestIndex;
+    private final double[] classDistances; // Log likelihood of each class
+    private final double[] classLikelihoods; // Normalised likelihoods
+
+    /**
+     * Builds the result from the log likelihood of each class, applying the
+     * same decision rule as HMM.predict.
+     *
+     * @param double[] classDistances: the log likelihood of each class, the
+     * array is owned by the result afterwards
+     */
+    RecognitionResult(double[] classDistances, int[] classLabels,
+            boolean useNullRejection, double[] nullRejectionThresholds) {
+        this.classDistances = classDistances;
+        classLikelihoods = new double[classDistances.length];
+        bestIndex = HMM.computeLikelihoods(classDistances, classLikelihoods);
+        predictedClassLabel = HMM.getClassLabel(classLabels, useNullRejection,
+                nullRejectionThresholds, bestIndex,
+                classLikelihoods[bestIndex]);
+    }
+
+    public int getPredictedClassLabel() {
+        return predictedClassLabel;
+    }
+
+    public Shape getShape() {
+        return Recognizer.getShape(predictedClassLabel);
+    }
+
+    /**
+     * @return the index of the class model with the highest log likelihood
+     */
+    public int getBestIndex() {
+        return bestIndex;
+    }
+
+    public double getBestDistance() {
+        return classDistances[bestIndex];
+    }
+
+    public double getMaxLikelihood() {
+        return classLikelihoods[bestIndex];
+    }
+
+    public int getNumClasses() {
+        return classDistances.length;
+    }
+
+    public double getClassDistance(int k) {
+        return classDistances[k];
+    }
+
+    public double getClassLikelihood(int k) {
+        return classLikelihoods[k];
+    }
+
+    public double[] getClassDistances() {
+        return classDistances.clone();
+    }
+
+    public double[] getClassLikelihoods() {
+        return classLikelihoods.clone();
+    }
+
+    @Override
+    public String toString() {
+        return getShape() + " (label " + predictedClassLabel
+                + ", log likelihood " + getBestDistance() + ")";
+    }
+}
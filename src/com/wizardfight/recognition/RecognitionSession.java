@@ -0,0 +1,126 @@
+package com.wizardfight.recognition;
+
+import com.wizardfight.Shape;
+import com.wizardfight.components.Vector3d;
+
+/**
+ * This class scores a gesture while it is being recorded. Every sample is
+ * quantized as soon as it arrives and the scaled forward variables of each
+ * class model are advanced by one step, so the current best class is always
+ * available without buffering the whole recording.
+ *
+ * A session is not thread safe; use one session per gesture source. Any
+ * number of sessions can share one engine.
+ */
+public class RecognitionSession {
+
+    private final RecognitionEngine engine;
+    private final ModelPack pack;
+    private final int numClasses;
+
+    private final double[][] alpha; // The scaled forward variables at t
+    private final double[][] next; // Scratch row for t+1
+    private final double[] logScale; // Sum of log(c[t]) for each class
+    private final double[] sample = new double[3];
+    private int length = 0;
+
+    public RecognitionSession(RecognitionEngine engine) {
+        this.engine = engine;
+        pack = engine.getPack();
+        numClasses = engine.getNumClasses();
+        alpha = new double[numClasses][];
+        next = new double[numClasses][];
+        logScale = new double[numClasses];
+        for (int k = 0; k < numClasses; k++) {
+            int numStates = pack.numStates[k];
+            alpha[k] = new double[numStates];
+            next[k] = new double[numStates];
+        }
+    }
+
+    /**
+     * Quantizes the sample and advances every class model by one step.
+     *
+     * @return the quantized symbol of the sample
+     */
+    public int addSample(double x, double y, double z) {
+        sample[0] = x;
+        sample[1] = y;
+        sample[2] = z;
+        int o = engine.quantize(sample);
+
+        for (int k = 0; k < numClasses; k++) {
+            if (length == 0) {
+                logScale[k] = Math.log(pack.forwardInit(k, o, alpha[k]));
+            } else {
+                double c = pack.forwardStep(k, alpha[k], next[k], o);
+                logScale[k] += Math.log(c);
+                double[] tmp = alpha[k];
+                alpha[k] = next[k];
+                next[k] = tmp;
+            }
+        }
+        length++;
+        return o;
+    }
+
+    public int addSample(Vector3d rec) {
+        return addSample(rec.x, rec.y, rec.z);
+    }
+
+    /**
+     * Clears the session so that a new gesture can be scored.
+     */
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * @return the number of samples scored since the last reset
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @param int k: the class index, in the range [0 numClasses-1]
+     * @return the log likelihood of the samples so far under the k'th model
+     */
+    public double getClassDistance(int k) {
+        return -logScale[k];
+    }
+
+    /**
+     * @return the decision HMM.predict would make for the samples added so
+     * far, or null if no sample has been added yet
+     */
+    public RecognitionResult getResult() {
+        if (length == 0) {
+            return null;
+        }
+        double[] classDistances = new double[numClasses];
+        for (int k = 0; k < numClasses; k++) {
+            classDistances[k] = getClassDistance(k);
+        }
+        return engine.newResult(classDistances);
+    }
+
+    /**
+     * @return the log likelihood of the best class so far
+     */
+    public double getBestDistance() {
+        return length == 0 ? -99e+99 : getResult().getBestDistance();
+    }
+
+    /**
+     * @return the predicted class label for the samples added so far, or 0
+     * if no sample has been added yet
+     */
+    public int getPredictedClassLabel() {
+        return length == 0 ? 0 : getResult().getPredictedClassLabel();
+    }
+
+    public Shape getShape() {
+        return length == 0 ? Shape.NONE : getResult().getShape();
+    }
+}
@@ -8,10 +8,29 @@ import com.wizardfight.components.Vector3d;
 public class Recognizer {
 
     static int sum;
-    private static KMeansQuantizer quantizer;
-    private static HMM hmm;
+    // Holds the compiled model every recognition runs against. The model is
+    // replaced as a whole, never modified, so callers see a consistent model.
+    private static final ModelRegistry registry = new ModelRegistry();
+    // Skips scoring of sequences without motion, null to score everything
+    private static volatile MotionGate motionGate = new MotionGate();
 
+    /**
+     * Loads the model, preferring the binary model file HMMModel.wfm and
+     * falling back to HMMQuantizer.ser and HMMModel.ser.
+     */
     public static void init() {
+        File modelFile = new File("HMMModel.wfm");
+        if (modelFile.exists()) {
+            try {
+                init(modelFile);
+                return;
+            } catch (IOException ex) {
+                System.err.println("ERROR: Failed to load model file! " + ex);
+            }
+        }
+
+        KMeansQuantizer quantizer = null;
+        HMM hmm = null;
         // Load quantizer from serialized file
         try {
             ObjectInputStream is = new ObjectInputStream(
@@ -22,8 +41,6 @@ public class Recognizer {
             System.err.println("ERROR: Failed to load quantizer! " + ex);
         }
 
-        // Create a new HMM instance
-        hmm = new HMM();
         // Load the HMM model from a file
         try {
             ObjectInputStream is = new ObjectInputStream(
@@ -34,26 +51,129 @@ public class Recognizer {
             System.err.println("ERROR: Failed to load hmm! " + ex);
         }
 
+        if (quantizer != null && hmm != null) {
+            try {
+                registry.publish(RecognitionEngine.compile(quantizer, hmm));
+            } catch (IOException ex) {
+                System.err.println("ERROR: Invalid model! " + ex);
+            } catch (RuntimeException ex) {
+                // The quantizer and the class models disagree on the sizes
+                System.err.println("ERROR: Invalid model! " + ex);
+            }
+        }
+    }
+
+    /**
+     * Loads the quantizer and the HMM from a binary model file.
+     */
+    public static void init(File modelFile) throws IOException {
+        registry.publish(ModelFile.read(modelFile).compile());
+    }
+
+    /**
+     * @return the engine used by recognize, or null if no model is loaded
+     */
+    public static RecognitionEngine getEngine() {
+        return registry.get();
+    }
+
+    /**
+     * @return the registry holding the current model, which can watch model
+     * files and swap in new versions while recognition is running
+     */
+    public static ModelRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Sets the gate that returns Shape.NONE for sequences without motion
+     * before they are scored.
+     *
+     * @param MotionGate gate: the gate, or null to score every sequence
+     */
+    public static void setMotionGate(MotionGate gate) {
+        motionGate = gate;
+    }
+
+    public static MotionGate getMotionGate() {
+        return motionGate;
     }
 
+    /**
+     * Recognizes the gesture. Stage timings and per-shape counts are kept by
+     * RecognitionMetrics.getDefault() and exposed through JMX.
+     *
+     * @return the shape, or Shape.NONE if the motion gate found no motion
+     */
     public static Shape recognize(ArrayList<Vector3d> records) {
-    	long startStamp = System.currentTimeMillis();
-        quantizer.refresh();
+        MotionGate gate = motionGate;
+        if (gate != null && gate.isIdle(records)) {
+            return skipIdle();
+        }
+        return registry.get().recognize(records).getShape();
+    }
+
+    /**
+     * Recognizes numSamples interleaved x, y, z samples starting at offset,
+     * without creating a Vector3d per sample.
+     */
+    public static Shape recognize(double[] xyz, int offset, int numSamples) {
+        MotionGate gate = motionGate;
+        if (gate != null && gate.isIdle(xyz, offset, numSamples)) {
+            return skipIdle();
+        }
+        return registry.get().recognize(xyz, offset, numSamples).getShape();
+    }
 
-        int[] timeSeries = new int[ records.size() ];
-        double[] rec = new double[3];
-        
-        for (int j = 0; j < timeSeries.length ; j++) {
-        	rec[0] = records.get(j).x;
-        	rec[1] = records.get(j).y;
-        	rec[2] = records.get(j).z;
-            timeSeries[j] = quantizer.quantize(rec);
+    public static Shape recognize(float[] xyz, int offset, int numSamples) {
+        MotionGate gate = motionGate;
+        if (gate != null && gate.isIdle(xyz, offset, numSamples)) {
+            return skipIdle();
         }
-        
-        hmm.predict(timeSeries);
+        return registry.get().recognize(xyz, offset, numSamples).getShape();
+    }
+
+    /**
+     * Recognizes numSamples samples held in x, y and z columns.
+     */
+    public static Shape recognize(double[] x, double[] y, double[] z,
+            int offset, int numSamples) {
+        MotionGate gate = motionGate;
+        if (gate != null && gate.isIdle(x, y, z, offset, numSamples)) {
+            return skipIdle();
+        }
+        return registry.get().recognize(x, y, z, offset, numSamples).getShape();
+    }
 
-        System.out.println("Time: " + (System.currentTimeMillis()-startStamp) + " ms");
-        return getShape(hmm.getPredictedClassLabel());
+    /**
+     * Recognizes the samples captured in a session's ring buffer.
+     */
+    public static Shape recognize(SampleRingBuffer ring) {
+        // Unwrap the ring once for both the gate and the engine
+        double[] xyz = ring.getSamples();
+        int offset = ring.getOffset();
+        return recognize(xyz, offset, ring.size());
+    }
+
+    private static Shape skipIdle() {
+        RecognitionMetrics.getDefault().recordSkipped();
+        return Shape.NONE;
+    }
+
+    /**
+     * Creates a session that scores a gesture sample by sample with the
+     * currently loaded model.
+     */
+    public static RecognitionSession newSession() {
+        return registry.get().newSession();
+    }
+
+    /**
+     * Creates a spotter that finds gestures in a continuous sample stream,
+     * without the caller marking where each gesture starts and ends.
+     */
+    public static GestureSpotter newSpotter() {
+        return registry.get().newSpotter();
     }
 
     static Shape getShape(int val) {
@@ -119,8 +239,7 @@ public class Recognizer {
         Loader loader = new Loader();
         // Load quantizer from serialized file
         try {
-            loader.loadQuantizerFromFile(path);
-            return loader.quantizer;
+            return loader.loadQuantizerFromFile(path) ? loader.quantizer : null;
         } catch (Exception ex) {
             System.err.println("ERROR: Failed to write quantizer! " + ex);
             return null;
@@ -130,8 +249,7 @@ public class Recognizer {
     public static HMM getHMMFromFile(String path) {
         Loader loader = new Loader();
         try {
-            loader.loadHMMFromFile(path);
-            return loader.hmm;
+            return loader.loadHMMFromFile(path) ? loader.hmm : null;
         } catch (Exception ex) {
             System.err.println("ERROR: Failed to write hmm! ");
             ex.printStackTrace();
@@ -147,7 +265,6 @@ public class Recognizer {
                     new FileOutputStream(new File("HMMQuantizer.ser")));
             loader.loadQuantizerFromFile(quantizerPath);
             os.writeObject(loader.quantizer);
-            quantizer = loader.quantizer;
             os.close();
         } catch (Exception ex) {
             System.err.println("ERROR: Failed to write quantizer! " + ex);
@@ -159,8 +276,8 @@ public class Recognizer {
                     new FileOutputStream(new File("HMMModel.ser")));
             loader.loadHMMFromFile(hmmPath);
             os.writeObject(loader.hmm);
-            hmm = loader.hmm;
             os.close();
+            registry.publish(RecognitionEngine.compile(loader.quantizer, loader.hmm));
         } catch (Exception ex) {
             System.err.println("ERROR: Failed to write hmm! " + ex);
         }
@@ -179,21 +296,25 @@ public class Recognizer {
         }
     }
     public static ArrayList<Vector3d> getRecordsFromFile(File file) {
+        RecognitionMetrics metrics = RecognitionMetrics.getDefault();
+        long startStamp = metrics.isEnabled() ? System.nanoTime() : 0;
         ArrayList<Vector3d> recs = new ArrayList<Vector3d>();
         try {
-            Scanner sc = new Scanner(file);
-
-            while (sc.hasNext()) {
-                String[] nums = sc.nextLine().split(" ");
-                Vector3d rec = new Vector3d();
-                rec.x = Double.parseDouble(nums[0]);
-                rec.y = Double.parseDouble(nums[1]);
-                rec.z = Double.parseDouble(nums[2]);
-                recs.add(rec);
+            SampleBuffer samples = RecordingReader.readAll(file, new SampleBuffer());
+            double[] x = samples.getX();
+            double[] y = samples.getY();
+            double[] z = samples.getZ();
+            recs.ensureCapacity(samples.size());
+            for (int i = 0; i < samples.size(); i++) {
+                recs.add(new Vector3d(x[i], y[i], z[i]));
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.out.println("Records file not found");
+        } catch (IOException e) {
+            System.err.println("ERROR: Failed to read records! " + e);
+        }
+        if (metrics.isEnabled()) {
+            metrics.parse.record(System.nanoTime() - startStamp);
         }
         return recs;
     }
@@ -0,0 +1,336 @@
+package com.wizardfight.recognition;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * This class reads a sensor recording, one "x y z" sample per line, from a
+ * memory mapped file. Numbers are parsed straight from the mapped bytes into
+ * primitive buffers, with no per line strings or objects.
+ *
+ * The file is mapped in windows of at most windowSize bytes, so files larger
+ * than memory (or than 2 GB) can be streamed with next or chunks. Values
+ * after the third on a line are ignored.
+ */
+public final class RecordingReader implements Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 << 20;
+    // A window is moved forward before fewer bytes than this remain, so a
+    // line is never split between two windows
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0; // File offset of the window
+    private int pos = 0; // Read position in the window
+    private int limit = 0; // Window length
+
+    // The sample parsed by nextSample
+    private double sx;
+    private double sy;
+    private double sz;
+
+    public RecordingReader(File path) throws IOException {
+        this(path, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param int windowSize: the largest number of bytes mapped at once
+     */
+    public RecordingReader(File path, int windowSize) throws IOException {
+        this.windowSize = Math.max(windowSize, 2 * MAX_LINE_LENGTH);
+        file = new RandomAccessFile(path, "r");
+        channel = file.getChannel();
+        fileSize = channel.size();
+        map(0);
+    }
+
+    /**
+     * Reads the whole recording.
+     *
+     * @param SampleBuffer buffer: cleared and filled with the samples
+     * @return buffer
+     */
+    public static SampleBuffer readAll(File path, SampleBuffer buffer)
+            throws IOException {
+        RecordingReader reader = new RecordingReader(path);
+        try {
+            buffer.clear();
+            if (reader.fileSize < Integer.MAX_VALUE) {
+                // Lines are at least 6 bytes long
+                buffer.ensureCapacity((int) Math.min(reader.fileSize / 6 + 1, 1 << 20));
+            }
+            reader.read(buffer, Integer.MAX_VALUE);
+            return buffer;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Appends up to maxSamples samples to the buffer.
+     *
+     * @return the number of samples read, 0 at the end of the file
+     */
+    public int read(SampleBuffer buffer, int maxSamples) throws IOException {
+        int n = 0;
+        while (n < maxSamples && nextSample()) {
+            buffer.add(sx, sy, sz);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Reads up to maxSamples samples into the columns, starting at offset.
+     *
+     * @return the number of samples read, 0 at the end of the file
+     */
+    public int read(double[] x, double[] y, double[] z, int offset,
+            int maxSamples) throws IOException {
+        int n = 0;
+        while (n < maxSamples && nextSample()) {
+            x[offset + n] = sx;
+            y[offset + n] = sy;
+            z[offset + n] = sz;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Same as read(double[], double[], double[], int, int) for float columns.
+     */
+    public int read(float[] x, float[] y, float[] z, int offset,
+            int maxSamples) throws IOException {
+        int n = 0;
+        while (n < maxSamples && nextSample()) {
+            x[offset + n] = (float) sx;
+            y[offset + n] = (float) sy;
+            z[offset + n] = (float) sz;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Streams the recording in chunks. Every chunk is returned in the same
+     * buffer, which is refilled by the next call to next().
+     *
+     * @param int chunkSize: the largest number of samples per chunk
+     */
+    public Iterable<SampleBuffer> chunks(final int chunkSize) {
+        return new Iterable<SampleBuffer>() {
+            @Override
+            public Iterator<SampleBuffer> iterator() {
+                return new ChunkIterator(chunkSize);
+            }
+        };
+    }
+
+    private final class ChunkIterator implements Iterator<SampleBuffer> {
+
+        private final SampleBuffer buffer;
+        private final int chunkSize;
+        private boolean filled = false;
+
+        ChunkIterator(int chunkSize) {
+            this.chunkSize = chunkSize;
+            buffer = new SampleBuffer(chunkSize);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!filled) {
+                buffer.clear();
+                try {
+                    read(buffer, chunkSize);
+                } catch (IOException ex) {
+                    throw new IllegalStateException(ex);
+                }
+                filled = true;
+            }
+            return !buffer.isEmpty();
+        }
+
+        @Override
+        public SampleBuffer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            filled = false;
+            return buffer;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        limit = (int) Math.min(windowSize, fileSize - start);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, limit);
+        pos = 0;
+    }
+
+    /**
+     * Parses the next sample into sx, sy and sz.
+     *
+     * @return false at the end of the file
+     */
+    private boolean nextSample() throws IOException {
+        skipBlankLines();
+        if (pos == limit) {
+            return false;
+        }
+        long lineStart = windowStart + pos;
+        sx = parseDouble(lineStart);
+        skipSpaces();
+        sy = parseDouble(lineStart);
+        skipSpaces();
+        sz = parseDouble(lineStart);
+
+        // Skip the rest of the line
+        while (pos < limit && window.get(pos) != '\n') {
+            pos++;
+        }
+        if (pos == limit && windowStart + limit < fileSize) {
+            throw new IOException("Line at byte " + lineStart + " is too long");
+        }
+        return true;
+    }
+
+    private void skipBlankLines() throws IOException {
+        while (true) {
+            if (limit - pos < MAX_LINE_LENGTH && windowStart + limit < fileSize) {
+                map(windowStart + pos);
+            }
+            if (pos == limit) {
+                return;
+            }
+            byte c = window.get(pos);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private void skipSpaces() {
+        while (pos < limit) {
+            byte c = window.get(pos);
+            if (c != ' ' && c != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    /**
+     * Parses a decimal number at pos. Numbers of up to 15 significant digits
+     * with a small exponent are converted exactly with one multiplication or
+     * division; others go through Double.parseDouble.
+     */
+    private double parseDouble(long lineStart) throws IOException {
+        final int start = pos;
+        int i = pos;
+        boolean negative = false;
+        if (i < limit && (window.get(i) == '-' || window.get(i) == '+')) {
+            negative = window.get(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        byte c;
+        for (; i < limit && (c = window.get(i)) >= '0' && c <= '9'; i++) {
+            anyDigit = true;
+            if (mantissa != 0 || c != '0') {
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+            }
+        }
+        if (i < limit && window.get(i) == '.') {
+            for (i++; i < limit && (c = window.get(i)) >= '0' && c <= '9'; i++) {
+                anyDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    mantissa = mantissa * 10 + (c - '0');
+                    digits++;
+                }
+                exponent--;
+            }
+        }
+        boolean slow = false;
+        if (anyDigit && i < limit && ((c = window.get(i)) == 'e' || c == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < limit && ((c = window.get(i)) == '-' || c == '+')) {
+                negativeExponent = c == '-';
+                i++;
+            }
+            int e = 0;
+            int expStart = i;
+            for (; i < limit && (c = window.get(i)) >= '0' && c <= '9'; i++) {
+                e = Math.min(e * 10 + (c - '0'), 100000);
+            }
+            slow = i == expStart;
+            exponent += negativeExponent ? -e : e;
+        }
+        pos = i;
+        if (!anyDigit || (i < limit && !isSeparator(window.get(i)))) {
+            throw new IOException("Malformed sample at byte " + lineStart);
+        }
+
+        if (slow || digits > 15) {
+            return parseSlow(start, i, lineStart);
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent <= 22) {
+            value = mantissa * GrtTokenizer.POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && exponent >= -22) {
+            value = mantissa / GrtTokenizer.POWERS_OF_TEN[-exponent];
+        } else {
+            return parseSlow(start, i, lineStart);
+        }
+        return negative ? -value : value;
+    }
+
+    private double parseSlow(int start, int end, long lineStart)
+            throws IOException {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char) window.get(i);
+        }
+        try {
+            return Double.parseDouble(new String(chars));
+        } catch (NumberFormatException ex) {
+            throw new IOException("Malformed sample at byte " + lineStart, ex);
+        }
+    }
+
+    private static boolean isSeparator(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
@@ -0,0 +1,235 @@
+package com.wizardfight.recognition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class remembers the class distances of recently scored symbol
+ * sequences, so that a sequence quantized to exactly the same symbols as an
+ * earlier one (a repeated gesture, a retry, bot traffic) skips HMM scoring.
+ *
+ * Entries are keyed by the sequence and by the ID of the engine that scored
+ * it. Lookups go by a 128 bit hash of the sequence, and a hit is only
+ * returned if the stored sequence is equal, so a collision costs a miss,
+ * never a wrong result. Every engine has its own ID, including engines
+ * derived with withCodebook, withScoringMode and so on, so after a hot swap
+ * no result of the older model is ever returned; its entries just age out.
+ *
+ * The cache is split into segments, each a least recently used map with its
+ * own lock, so that threads rarely wait on each other. The bound on entries
+ * holds for the whole cache: a put that goes over it evicts the least
+ * recently used sequences of the segment it wrote to, or of the following
+ * segments if that segment holds nothing else. Concurrent puts may go over
+ * the bound by one entry each until they have evicted.
+ */
+public final class ResultCache {
+
+    private static final int NUM_SEGMENTS = 16;
+
+    /**
+     * A cache key: an engine ID and a symbol sequence with its hash.
+     */
+    static final class Key {
+
+        final long engineId;
+        final int[] symbols; // Not copied, see copy()
+        final long hash1;
+        final long hash2;
+
+        /**
+         * @param int[] symbols: the sequence, which must not change while the
+         * key is in use
+         */
+        Key(long engineId, int[] symbols) {
+            this.engineId = engineId;
+            this.symbols = symbols;
+            long h1 = 0x9e3779b97f4a7c15L;
+            long h2 = 0xc2b2ae3d27d4eb4fL;
+            for (int s : symbols) {
+                h1 = (h1 ^ s) * 0x100000001b3L;
+                h2 = Long.rotateLeft(h2 + s * 0x87c37b91114253d5L, 31)
+                        * 0x4cf5ad432745937fL;
+            }
+            hash1 = mix(h1 ^ symbols.length);
+            hash2 = mix(h2 + h1);
+        }
+
+        Key(long engineId, int[] symbols, long hash1, long hash2) {
+            this.engineId = engineId;
+            this.symbols = symbols;
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+        }
+
+        /**
+         * @return a key holding its own copy of the sequence
+         */
+        Key copy() {
+            return new Key(engineId, symbols.clone(), hash1, hash2);
+        }
+
+        // The 64 bit finalizer of MurmurHash3
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash1 == other.hash1 && hash2 == other.hash2
+                    && engineId == other.engineId
+                    && Arrays.equals(symbols, other.symbols);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash1 ^ (hash1 >>> 32));
+        }
+    }
+
+    private final int maxEntries;
+    // Guarded by themselves, in access order
+    private final List<LinkedHashMap<Key, double[]>> segments;
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param int maxEntries: the largest number of sequences kept
+     */
+    public ResultCache(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        segments = new ArrayList<LinkedHashMap<Key, double[]>>(NUM_SEGMENTS);
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            segments.add(new LinkedHashMap<Key, double[]>(16, 0.75f, true));
+        }
+    }
+
+    private int segmentIndex(Key key) {
+        return (int) (key.hash2 >>> 60) & (NUM_SEGMENTS - 1);
+    }
+
+    private LinkedHashMap<Key, double[]> segmentOf(Key key) {
+        return segments.get(segmentIndex(key));
+    }
+
+    /**
+     * @return a copy of the class distances cached for the key, or null
+     */
+    double[] get(Key key) {
+        LinkedHashMap<Key, double[]> segment = segmentOf(key);
+        double[] classDistances;
+        synchronized (segment) {
+            classDistances = segment.get(key);
+        }
+        if (classDistances == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return classDistances.clone();
+    }
+
+    /**
+     * Caches copies of the key's sequence and of the class distances,
+     * evicting least recently used sequences if the cache is full.
+     */
+    void put(Key key, double[] classDistances) {
+        Key stored = key.copy();
+        double[] copy = classDistances.clone();
+        int index = segmentIndex(stored);
+        LinkedHashMap<Key, double[]> segment = segments.get(index);
+        synchronized (segment) {
+            if (segment.put(stored, copy) == null) {
+                size.incrementAndGet();
+            }
+            evict(segment, 1);
+        }
+        // The segment held nothing else, make room in the following ones
+        for (int i = 1; i < NUM_SEGMENTS && size.get() > maxEntries; i++) {
+            LinkedHashMap<Key, double[]> other = segments.get(
+                    (index + i) & (NUM_SEGMENTS - 1));
+            synchronized (other) {
+                evict(other, 0);
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used entries of the segment while the cache
+     * is over its bound, keeping at least keep entries. The caller holds the
+     * segment's lock.
+     */
+    private void evict(LinkedHashMap<Key, double[]> segment, int keep) {
+        Iterator<Map.Entry<Key, double[]>> it = segment.entrySet().iterator();
+        while (size.get() > maxEntries && segment.size() > keep
+                && it.hasNext()) {
+            it.next();
+            it.remove();
+            size.decrementAndGet();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public void clear() {
+        for (LinkedHashMap<Key, double[]> segment : segments) {
+            synchronized (segment) {
+                size.addAndGet(-segment.size());
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the share of lookups served from the cache, 0 if there were
+     * none
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCache[entries=" + size() + "/" + maxEntries + ", hits="
+                + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+}
@@ -0,0 +1,137 @@
+package com.wizardfight.recognition;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Correctness check for ResultCache. Every recording is scored without a
+ * cache first; then it must get exactly the same result from a cached
+ * engine, both when it is scored and when it is served from the cache. The
+ * cache is sized to exactly one pass over the recordings, so a second pass
+ * must hit every time, and filling it again must never go over the bound.
+ * Two engines scoring in different modes share one cache and must never see
+ * each other's results, and keys whose hashes collide must not match. The
+ * replay time with and without the cache is printed for reference.
+ *
+ * Usage: ResultCacheCheck [inputDir] [iterations]
+ */
+public class ResultCacheCheck {
+
+    public static void main(String[] args) throws Exception {
+        File inputDir = new File(args.length > 0 ? args[0] : "input");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+        Recognizer.init();
+        RecognitionEngine engine = Recognizer.getEngine();
+        if (engine == null) {
+            System.err.println("ERROR: No model loaded!");
+            System.exit(2);
+        }
+        File[] files = inputDir.listFiles();
+        if (files == null || files.length == 0) {
+            System.err.println("ERROR: No recordings in " + inputDir);
+            System.exit(2);
+        }
+        Arrays.sort(files);
+
+        List<int[]> sequences = new ArrayList<int[]>();
+        for (File file : files) {
+            int[] timeSeries = engine.quantize(Recognizer.getRecordsFromFile(file));
+            if (timeSeries.length > 0) {
+                sequences.add(timeSeries);
+            }
+        }
+
+        // A full pass leaves one entry per distinct sequence
+        Set<String> distinct = new HashSet<String>();
+        for (int[] timeSeries : sequences) {
+            distinct.add(Arrays.toString(timeSeries));
+        }
+        int numDistinct = distinct.size();
+
+        // The cache holds exactly one pass: the first pass fills it, the
+        // second is served from it without evicting
+        RecognitionEngine forward = engine.withScoringMode(ScoringMode.FORWARD);
+        RecognitionEngine viterbi = engine.withScoringMode(ScoringMode.VITERBI);
+        ResultCache cache = new ResultCache(numDistinct);
+        RecognitionEngine cachedForward = forward.withResultCache(cache);
+        RecognitionEngine cachedViterbi = viterbi.withResultCache(cache);
+        int mismatches = 0;
+        long firstPassHits = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            firstPassHits = cache.getHitCount();
+            for (int[] timeSeries : sequences) {
+                if (!matches(forward.predict(timeSeries),
+                        cachedForward.predict(timeSeries))) {
+                    mismatches++;
+                }
+            }
+        }
+        long hits = cache.getHitCount() - firstPassHits;
+        if (hits != sequences.size() || cache.getEvictionCount() != 0) {
+            System.err.println("ERROR: Expected " + sequences.size()
+                    + " cache hits and no evictions in the second pass, got "
+                    + hits + " and " + cache.getEvictionCount());
+            mismatches++;
+        }
+
+        // The other mode never sees the forward results; each of its
+        // entries pushes one forward entry out, without going over the bound
+        for (int[] timeSeries : sequences) {
+            if (!matches(viterbi.predict(timeSeries),
+                    cachedViterbi.predict(timeSeries))) {
+                mismatches++;
+            }
+        }
+        if (cache.size() != numDistinct
+                || cache.getEvictionCount() != numDistinct) {
+            System.err.println("ERROR: Expected " + numDistinct + " entries and "
+                    + numDistinct + " evictions, got " + cache.size() + " and "
+                    + cache.getEvictionCount());
+            mismatches++;
+        }
+
+        // A key with the same hashes but another sequence must miss
+        int[] symbols = sequences.get(0);
+        ResultCache.Key key = new ResultCache.Key(1, symbols);
+        cache.put(key, new double[] { 1 });
+        int[] other = symbols.clone();
+        other[0]++;
+        if (cache.get(new ResultCache.Key(1, other, key.hash1, key.hash2)) != null) {
+            System.err.println("ERROR: A colliding key returned a cached result");
+            mismatches++;
+        }
+
+        long uncached = replay(forward, sequences, iterations);
+        long cached = replay(forward.withResultCache(new ResultCache(
+                numDistinct)), sequences, iterations);
+        System.out.println("Sequences: " + sequences.size() + ", " + cache
+                + ", mismatches: " + mismatches);
+        System.out.println("Replay x" + iterations + ": " + uncached / 1000000
+                + " ms without cache, " + cached / 1000000 + " ms with cache");
+        if (mismatches != 0) {
+            System.exit(1);
+        }
+    }
+
+    private static long replay(RecognitionEngine engine, List<int[]> sequences,
+            int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (int[] timeSeries : sequences) {
+                engine.predict(timeSeries);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static boolean matches(RecognitionResult a, RecognitionResult b) {
+        return a.getPredictedClassLabel() == b.getPredictedClassLabel()
+                && Arrays.equals(a.getClassDistances(), b.getClassDistances())
+                && Arrays.equals(a.getClassLikelihoods(), b.getClassLikelihoods());
+    }
+}
@@ -0,0 +1,94 @@
+package com.wizardfight.recognition;
+
+/**
+ * This class holds accelerometer samples as three primitive columns. The
+ * arrays grow as needed and are kept by clear, so one buffer can be reused
+ * for any number of recordings without allocating.
+ */
+public final class SampleBuffer {
+
+    private double[] x;
+    private double[] y;
+    private double[] z;
+    private int size = 0;
+
+    public SampleBuffer() {
+        this(256);
+    }
+
+    public SampleBuffer(int capacity) {
+        capacity = Math.max(1, capacity);
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+    }
+
+    public void add(double sx, double sy, double sz) {
+        if (size == x.length) {
+            ensureCapacity(size * 2);
+        }
+        x[size] = sx;
+        y[size] = sy;
+        z[size] = sz;
+        size++;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > x.length) {
+            double[] nx = new double[capacity];
+            double[] ny = new double[capacity];
+            double[] nz = new double[capacity];
+            System.arraycopy(x, 0, nx, 0, size);
+            System.arraycopy(y, 0, ny, 0, size);
+            System.arraycopy(z, 0, nz, 0, size);
+            x = nx;
+            y = ny;
+            z = nz;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the x column; only the first size() values are samples, and
+     * the array is replaced when the buffer grows
+     */
+    public double[] getX() {
+        return x;
+    }
+
+    public double[] getY() {
+        return y;
+    }
+
+    public double[] getZ() {
+        return z;
+    }
+
+    /**
+     * Copies the samples to xyz as interleaved x, y, z triples.
+     *
+     * @return xyz, or a new array if it is too small
+     */
+    public double[] toInterleaved(double[] xyz) {
+        if (xyz == null || xyz.length < size * 3) {
+            xyz = new double[size * 3];
+        }
+        for (int i = 0; i < size; i++) {
+            xyz[3 * i] = x[i];
+            xyz[3 * i + 1] = y[i];
+            xyz[3 * i + 2] = z[i];
+        }
+        return xyz;
+    }
+}
@@ -0,0 +1,114 @@
+package com.wizardfight.recognition;
+
+/**
+ * This class keeps the latest samples of one player in a fixed-capacity
+ * ring of interleaved x, y, z values. Capture code writes samples straight
+ * into it; once the ring is full each new sample replaces the oldest. No
+ * method allocates after construction.
+ *
+ * A ring buffer belongs to one session and is not thread safe.
+ */
+public final class SampleRingBuffer {
+
+    private final int capacity;
+    private final double[] data; // Interleaved x, y, z
+    private final double[] ordered; // Oldest first, used when data wraps
+    private int start = 0; // Index of the oldest sample
+    private int size = 0;
+
+    /**
+     * @param int capacity: the largest number of samples kept
+     */
+    public SampleRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+        data = new double[capacity * 3];
+        ordered = new double[capacity * 3];
+    }
+
+    public void add(double x, double y, double z) {
+        int i;
+        if (size < capacity) {
+            i = start + size;
+            if (i >= capacity) {
+                i -= capacity;
+            }
+            size++;
+        } else {
+            i = start;
+            start = start + 1 == capacity ? 0 : start + 1;
+        }
+        data[3 * i] = x;
+        data[3 * i + 1] = y;
+        data[3 * i + 2] = z;
+    }
+
+    /**
+     * Adds numSamples interleaved x, y, z samples starting at offset.
+     */
+    public void add(double[] xyz, int offset, int numSamples) {
+        for (int t = 0; t < numSamples; t++) {
+            int o = offset + 3 * t;
+            add(xyz[o], xyz[o + 1], xyz[o + 2]);
+        }
+    }
+
+    public void add(float[] xyz, int offset, int numSamples) {
+        for (int t = 0; t < numSamples; t++) {
+            int o = offset + 3 * t;
+            add(xyz[o], xyz[o + 1], xyz[o + 2]);
+        }
+    }
+
+    public void clear() {
+        start = 0;
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Copies the samples, oldest first, to xyz as interleaved triples.
+     *
+     * @return the number of samples copied
+     */
+    public int copyTo(double[] xyz, int offset) {
+        int first = Math.min(size, capacity - start);
+        System.arraycopy(data, 3 * start, xyz, offset, 3 * first);
+        System.arraycopy(data, 0, xyz, offset + 3 * first, 3 * (size - first));
+        return size;
+    }
+
+    /**
+     * @return the samples oldest first, interleaved, starting at
+     * getOffset(). The array is owned by the buffer and only valid until the
+     * next add.
+     */
+    double[] getSamples() {
+        if (start + size <= capacity) {
+            return data;
+        }
+        copyTo(ordered, 0);
+        return ordered;
+    }
+
+    /**
+     * @return the offset of the oldest sample in the array of getSamples(),
+     * which must be called first
+     */
+    int getOffset() {
+        return start + size <= capacity ? 3 * start : 0;
+    }
+}
@@ -0,0 +1,35 @@
+package com.wizardfight.recognition;
+
+/**
+ * How a quantized sequence is scored against a class model.
+ *
+ * FORWARD: the log likelihood of the sequence summed over all state paths,
+ * computed with the scaled forward algorithm
+ * VITERBI: the log probability of the single best state path, computed on
+ * precomputed log tables with additions and comparisons only
+ * RUN_LENGTH: the FORWARD log likelihood, computed one run of equal symbols
+ * at a time from cached operator powers (see SymbolOperators); equal to
+ * FORWARD up to rounding
+ *
+ * The default is read from the system property wizardfight.scoringMode.
+ */
+public enum ScoringMode {
+    FORWARD, VITERBI, RUN_LENGTH;
+
+    /**
+     * @return the mode named by wizardfight.scoringMode, FORWARD if it is not
+     * set or not valid
+     */
+    public static ScoringMode getDefault() {
+        String name = System.getProperty("wizardfight.scoringMode");
+        if (name != null) {
+            for (ScoringMode mode : values()) {
+                if (mode.name().equalsIgnoreCase(name.trim())) {
+                    return mode;
+                }
+            }
+            System.err.println("ERROR: Unknown scoring mode " + name);
+        }
+        return FORWARD;
+    }
+}
@@ -0,0 +1,230 @@
+package com.wizardfight.recognition;
+
+/**
+ * This class scores the forward algorithm one run of equal symbols at a
+ * time. For symbol s the forward step is alpha' = alpha * M_s with
+ * M_s = A * diag(b_s), so a run of r equal symbols is alpha * M_s^r. The
+ * powers M_s^(2^p) are computed once per class and symbol, and a run is
+ * advanced with one vector-matrix product per set bit of r instead of r
+ * steps. Quantized gestures are mostly long runs of the same symbol.
+ *
+ * Every power is stored divided by its largest entry, with the log of the
+ * divisors kept apart, and alpha is rescaled to sum to 1 after each
+ * product, so nothing underflows however long the run. Scores equal those
+ * of the forward algorithm up to rounding.
+ *
+ * Runs longer than 2^numPowers - 1 apply the largest power repeatedly.
+ * Instances are immutable.
+ */
+final class SymbolOperators {
+
+    static final int DEFAULT_NUM_POWERS = 8;
+
+    private final ModelPack pack;
+    private final int numPowers;
+    private final int[] offsets; // Start of each class's operators in ops
+    // ops[offsets[k] + ((s * numPowers + p) * N + j) * N + i] is
+    // M_s^(2^p)[i][j], scaled
+    private final double[] ops;
+    // logScales[(k * numSymbols + s) * numPowers + p]
+    private final double[] logScales;
+
+    SymbolOperators(ModelPack pack) {
+        this(pack, DEFAULT_NUM_POWERS);
+    }
+
+    /**
+     * @return the number of bytes taken by the operators and their scales
+     */
+    long getSizeInBytes() {
+        return ((long) ops.length + logScales.length) * 8 + offsets.length * 4;
+    }
+
+    /**
+     * @param int numPowers: the number of powers kept per class and symbol,
+     * so that runs of up to 2^numPowers - 1 symbols take at most numPowers
+     * products
+     */
+    SymbolOperators(ModelPack pack, int numPowers) {
+        this.pack = pack;
+        this.numPowers = Math.max(1, numPowers);
+        final int M = pack.numSymbols;
+        offsets = new int[pack.numClasses];
+        int size = 0;
+        for (int k = 0; k < pack.numClasses; k++) {
+            offsets[k] = size;
+            size += M * this.numPowers * pack.numStates[k] * pack.numStates[k];
+        }
+        ops = new double[size];
+        logScales = new double[pack.numClasses * M * this.numPowers];
+
+        for (int k = 0; k < pack.numClasses; k++) {
+            final int N = pack.numStates[k];
+            final int aT = pack.offsets[k] + N;
+            final int b = aT + N * N;
+            double[][] power = new double[N][N];
+            double[][] square = new double[N][N];
+            for (int s = 0; s < M; s++) {
+                // M_s[i][j] = a[i][j] * b[j][s]
+                for (int i = 0; i < N; i++) {
+                    for (int j = 0; j < N; j++) {
+                        power[i][j] = pack.data[aT + j * N + i]
+                                * pack.data[b + s * N + j];
+                    }
+                }
+                double logScale = normalise(power);
+                for (int p = 0; p < this.numPowers; p++) {
+                    if (p > 0) {
+                        for (int i = 0; i < N; i++) {
+                            for (int j = 0; j < N; j++) {
+                                double v = 0;
+                                for (int m = 0; m < N; m++) {
+                                    v += power[i][m] * power[m][j];
+                                }
+                                square[i][j] = v;
+                            }
+                        }
+                        double[][] tmp = power;
+                        power = square;
+                        square = tmp;
+                        logScale = 2 * logScale + normalise(power);
+                    }
+                    int o = offsets[k] + (s * this.numPowers + p) * N * N;
+                    for (int i = 0; i < N; i++) {
+                        for (int j = 0; j < N; j++) {
+                            ops[o + j * N + i] = power[i][j];
+                        }
+                    }
+                    logScales[(k * M + s) * this.numPowers + p] = logScale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Divides the matrix by its largest entry.
+     *
+     * @return the log of the divisor, Double.NEGATIVE_INFINITY if the matrix
+     * is zero
+     */
+    private static double normalise(double[][] m) {
+        double max = 0;
+        for (double[] row : m) {
+            for (double v : row) {
+                max = Math.max(max, v);
+            }
+        }
+        if (max == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        for (double[] row : m) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] /= max;
+            }
+        }
+        return Math.log(max);
+    }
+
+    int getNumPowers() {
+        return numPowers;
+    }
+
+    /**
+     * Computes the log likelihood of obs[offset, offset+length) under class k.
+     *
+     * @param double[] alpha, tmp: scratch rows of at least numStates[k] values
+     */
+    double forward(int k, int[] obs, int offset, int length, double[] alpha,
+            double[] tmp) {
+        final int end = offset + length;
+        int t = offset;
+        double loglikelihood = 0;
+        while (t < end) {
+            int o = obs[t];
+            int runEnd = t + 1;
+            while (runEnd < end && obs[runEnd] == o) {
+                runEnd++;
+            }
+            loglikelihood += t == offset
+                    ? init(k, o, runEnd - t, alpha, tmp)
+                    : advance(k, o, runEnd - t, alpha, tmp);
+            if (loglikelihood == Double.NEGATIVE_INFINITY) {
+                return loglikelihood;
+            }
+            t = runEnd;
+        }
+        return loglikelihood;
+    }
+
+    /**
+     * Starts the forward algorithm of class k with a run of symbol o.
+     *
+     * @param double[] alpha: receives the forward variables after the run,
+     * scaled to sum to 1
+     * @return the log likelihood of the run
+     */
+    double init(int k, int o, int runLength, double[] alpha, double[] tmp) {
+        final int N = pack.numStates[k];
+        final int pi = pack.offsets[k];
+        final int b = pi + N + N * N + o * N;
+        double sum = 0;
+        for (int i = 0; i < N; i++) {
+            alpha[i] = pack.data[pi + i] * pack.data[b + i];
+            sum += alpha[i];
+        }
+        double loglikelihood = rescale(alpha, N, sum);
+        if (runLength > 1 && loglikelihood != Double.NEGATIVE_INFINITY) {
+            loglikelihood += advance(k, o, runLength - 1, alpha, tmp);
+        }
+        return loglikelihood;
+    }
+
+    /**
+     * Advances the forward variables of class k over a run of symbol o.
+     *
+     * @param double[] alpha: the forward variables, scaled to sum to 1, which
+     * are replaced by those after the run
+     * @param double[] tmp: a scratch row of at least numStates[k] values
+     * @return the log likelihood of the run given the symbols before it
+     */
+    double advance(int k, int o, int runLength, double[] alpha, double[] tmp) {
+        final int N = pack.numStates[k];
+        final double[] ops = this.ops;
+        final int scales = (k * pack.numSymbols + o) * numPowers;
+        double loglikelihood = 0;
+        while (runLength > 0) {
+            int p = Math.min(31 - Integer.numberOfLeadingZeros(runLength),
+                    numPowers - 1);
+            runLength -= 1 << p;
+            final int op = offsets[k] + (o * numPowers + p) * N * N;
+            double sum = 0;
+            for (int j = 0; j < N; j++) {
+                final int row = op + j * N;
+                double v = 0;
+                for (int i = 0; i < N; i++) {
+                    v += alpha[i] * ops[row + i];
+                }
+                tmp[j] = v;
+                sum += v;
+            }
+            System.arraycopy(tmp, 0, alpha, 0, N);
+            loglikelihood += logScales[scales + p] + rescale(alpha, N, sum);
+            if (loglikelihood == Double.NEGATIVE_INFINITY) {
+                return loglikelihood;
+            }
+        }
+        return loglikelihood;
+    }
+
+    // Scales alpha to sum to 1 and returns the log of the old sum
+    private static double rescale(double[] alpha, int N, double sum) {
+        if (!(sum > 0)) {
+            return Double.NEGATIVE_INFINITY;
+        }
+        double c = 1.0 / sum;
+        for (int i = 0; i < N; i++) {
+            alpha[i] *= c;
+        }
+        return Math.log(sum);
+    }
+}